@@ -1,12 +1,60 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.Writer;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.InputMismatchException;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 import java.io.IOException;
 
 
@@ -16,132 +64,478 @@ import java.io.IOException;
  * and writes results or error message to output.txt.
  */
 public class Main {
-    private static Board gameBoard;
+    private static final int THIRD_ARGUMENT = 3;
+    private static final int FOURTH_ARGUMENT = 4;
+    private static final int FIFTH_ARGUMENT = 5;
     /**
      * Runs the simulation: reads board size, insects, food points and produces the output file.
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            runCommand(args);
+            return;
+        }
         String error = null;
-        final int minSize = 4;
-        final int maxSize = 1000;
-        final int minNumber = 1;
-        final int maxNumberInsects = 16;
-        final int maxNumberFood = 200;
-        List<Insect> insectsInOrder = new ArrayList<>();
         List<String> results = new ArrayList<>();
-        try (Scanner sc = new Scanner(new File("input.txt"))) {
+        try {
+            Scenario scenario = FastStartup.readInput("input.txt");
+            results = scenario.run();
+        } catch (Exception e) {
+            error = e.getMessage();
+        } catch (IOException e) {
+        }
 
-            int d = sc.nextInt();
-            if (d < minSize || d > maxSize) {
-                throw new InvalidBoardSizeException();
+        try (FileWriter fw = new FileWriter("output.txt")) {
+            if (error != null) {
+                fw.write(error + System.lineSeparator());
+            } else {
+                for (String s : results) {
+                    fw.write(s);
+                    fw.write(System.lineSeparator());
+                }
             }
-
-            int n = sc.nextInt();
-            if (n < minNumber || n > maxNumberInsects) {
-                throw new InvalidNumberOfInsectsException();
+        } catch (IOException ignored) {
+        }
+    }
+    /**
+     * Runs one of the batch modes selected by the first argument.
+     * <ul>
+     *     <li>{@code --stream [input|-] [output|-]} runs every scenario of one concatenated input
+     *     and writes all results to one output</li>
+     *     <li>{@code --pipeline [input|-] [output|-] [workers]} does the same with parsing, simulation
+     *     and writing overlapped in separate threads</li>
+     *     <li>{@code --shadow engine [input|-] [report|-]} runs every scenario through the reference
+     *     engine and the named engine and reports mismatches and speedups</li>
+     *     <li>{@code --generate count [output|-] [key=value...]} writes synthetic scenarios,
+     *     see {@link ScenarioGenerator} for the options</li>
+     *     <li>{@code --shard workers [input|-] [output|-]} runs the scenarios on that many worker JVMs
+     *     started with {@code --worker}, see {@link ShardCoordinator}</li>
+     *     <li>{@code --schedule [input|-] [output|-] [smallWorkers] [largeWorkers] [smallJobMicros]} runs the
+     *     scenarios shortest job first on a small-job and a large-job lane and reports latency percentiles
+     *     per lane, see {@link LaneScheduler}</li>
+     *     <li>{@code --fit-cost-model plan.log...} fits the {@link EngineCostModel} rows from plan logs,
+     *     see {@link CostModelFit}</li>
+     * </ul>
+     * @param args command line arguments
+     */
+    private static void runCommand(String[] args) {
+        try {
+            switch (args[0]) {
+                case "--stream":
+                    try (InputStream in = openInput(argument(args, 1));
+                         OutputStream out = openOutput(argument(args, 2))) {
+                        ScenarioStream.run(in, out);
+                    }
+                    break;
+                case "--pipeline":
+                    int workers = args.length > THIRD_ARGUMENT ? Integer.parseInt(args[THIRD_ARGUMENT])
+                            : Runtime.getRuntime().availableProcessors();
+                    PipelineStats stats;
+                    try (InputStream in = openInput(argument(args, 1));
+                         OutputStream out = openOutput(argument(args, 2))) {
+                        stats = new ScenarioPipeline(workers, ScenarioPipeline.DEFAULT_QUEUE_CAPACITY).run(in, out);
+                    }
+                    System.err.println(stats);
+                    break;
+                case "--shadow":
+                    requireArguments(args, 2, "--shadow engine [input|-] [report|-]");
+                    long mismatches;
+                    try (InputStream in = openInput(argument(args, 2));
+                         PrintStream report = new PrintStream(openOutput(argument(args, THIRD_ARGUMENT)))) {
+                        mismatches = new ShadowRunner(SimulationEngine.named(args[1])).run(in, report);
+                    }
+                    if (mismatches > 0) {
+                        System.exit(1);
+                    }
+                    break;
+                case "--generate":
+                    requireArguments(args, 2, "--generate count [output|-] [key=value...]");
+                    List<String> generatorOptions = Arrays.asList(args).subList(Math.min(args.length, THIRD_ARGUMENT),
+                            args.length);
+                    ScenarioGenerator generator = new ScenarioGenerator(generatorOptions);
+                    try (Writer out = new BufferedWriter(new OutputStreamWriter(openOutput(argument(args, 2)),
+                            StandardCharsets.US_ASCII))) {
+                        long count = Long.parseLong(args[1]);
+                        for (long i = 0; i < count; i++) {
+                            out.write(generator.next());
+                        }
+                    }
+                    break;
+                case "--fit-cost-model":
+                    requireArguments(args, 2, "--fit-cost-model plan.log...");
+                    List<Path> logs = new ArrayList<>();
+                    for (int i = 1; i < args.length; i++) {
+                        logs.add(Paths.get(args[i]));
+                    }
+                    System.out.print(CostModelFit.fit(logs));
+                    break;
+                case "--shard":
+                    requireArguments(args, 2, "--shard workers [input|-] [output|-]");
+                    String summary;
+                    try (InputStream in = openInput(argument(args, 2));
+                         OutputStream out = openOutput(argument(args, THIRD_ARGUMENT))) {
+                        summary = new ShardCoordinator(Integer.parseInt(args[1])).run(in, out);
+                    }
+                    System.err.println(summary);
+                    break;
+                case "--schedule":
+                    LaneStats laneStats;
+                    try (InputStream in = openInput(argument(args, 1));
+                         OutputStream out = openOutput(argument(args, 2))) {
+                        laneStats = new LaneScheduler(integerArgument(args, THIRD_ARGUMENT, 1),
+                                integerArgument(args, FOURTH_ARGUMENT, 1),
+                                integerArgument(args, FIFTH_ARGUMENT, LaneScheduler.DEFAULT_SMALL_JOB_MICROS))
+                                .run(in, out);
+                    }
+                    System.err.println(laneStats);
+                    break;
+                case "--worker":
+                    ShardCoordinator.serve(new FileInputStream(FileDescriptor.in),
+                            new FileOutputStream(FileDescriptor.out));
+                    break;
+                default:
+                    System.err.println("Unknown mode " + args[0]);
+                    System.exit(1);
             }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
 
-            int m = sc.nextInt();
-            if (m < minNumber || m > maxNumberFood) {
-                throw new InvalidNumberOfFoodPointsException();
-            }
+    private static void requireArguments(String[] args, int count, String usage) {
+        if (args.length < count) {
+            throw new IllegalArgumentException("Usage: " + usage);
+        }
+    }
 
-            gameBoard = new Board(d);
-            Set<String> typeColorUsed = new HashSet<>();
-            Set<String> occupiedCells = new HashSet<>();
+    private static String argument(String[] args, int index) {
+        return args.length > index ? args[index] : "-";
+    }
 
-            for (int i = 0; i < n; i++) {
-                String colorStr = sc.next();
-                String typeStr  = sc.next();
-                int x = sc.nextInt();
-                int y = sc.nextInt();
-
-                InsectColor color = InsectColor.toColor(colorStr);
-
-                Insect insect;
-                EntityPosition pos = new EntityPosition(x, y);
-                switch (typeStr) {
-                    case "Ant":
-                        insect = new Ant(pos, color);
-                        break;
-                    case "Butterfly":
-                        insect = new Butterfly(pos, color);
-                        break;
-                    case "Spider":
-                        insect = new Spider(pos, color);
-                        break;
-                    case "Grasshopper":
-                        insect = new Grasshopper(pos, color);
-                        break;
-                    default:
-                        throw new InvalidInsectTypeException();
-                }
+    private static int integerArgument(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+    /**
+     * Opens a file for reading, or standard input for "-", decompressing it if it is compressed.
+     */
+    static InputStream openInput(String name) throws IOException {
+        return CompressedInput.open("-".equals(name) ? new FileInputStream(FileDescriptor.in)
+                : new FileInputStream(name));
+    }
+    /**
+     * Opens a file for writing, or standard output for "-".
+     */
+    static OutputStream openOutput(String name) throws IOException {
+        return "-".equals(name) ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(name);
+    }
+}
 
-                if (x < minNumber || x > d || y < minNumber || y > d) {
-                    throw new InvalidEntityPositionException();
-                }
+/**
+ * Validated initial layout of one simulation: board size, insects in input order and food points.
+ */
+class Scenario {
+    static final int MIN_SIZE = 4;
+    static final int MAX_SIZE = 1000;
+    static final int MIN_NUMBER = 1;
+    static final int MAX_NUMBER_OF_INSECTS = 16;
+    static final int MAX_NUMBER_OF_FOOD_POINTS = 200;
 
-                String colorKey = typeStr + "-" + colorStr;
-                if (typeColorUsed.contains(colorKey)) {
-                    throw new DuplicateInsectException();
-                }
-                typeColorUsed.add(colorKey);
+    private final int size;
+    private final List<Insect> insects;
+    private final List<FoodPoint> foodPoints;
 
-                String cellKey = x + "," + y;
-                if (occupiedCells.contains(cellKey)) {
-                    throw new TwoEntitiesOnSamePositionException();
-                }
-                occupiedCells.add(cellKey);
+    public Scenario(int size, List<Insect> insects, List<FoodPoint> foodPoints) {
+        this.size = size;
+        this.insects = insects;
+        this.foodPoints = foodPoints;
+    }
+    /**
+     * Reads and validates one scenario in the input.txt format.
+     * @param sc scanner positioned at the board size
+     * @return validated scenario
+     * @throws Exception the first validation error found, in input order
+     */
+    public static Scenario read(Scanner sc) throws Exception {
+        try {
+            return readSingle(ScenarioSource.of(sc));
+        } catch (IOException e) {
+            // a Scanner keeps read errors to itself
+            throw new UncheckedIOException(e);
+        }
+    }
+    /**
+     * Reads and validates the only scenario of an input, checking each header number right after reading it
+     * as the one-shot program always did.
+     * Malformed numbers and a missing token are left to the source to report, as its exceptions.
+     * @param in source positioned at the board size
+     * @return validated scenario
+     * @throws Exception the first validation error found, in input order
+     * @throws IOException if the input cannot be read
+     */
+    public static Scenario readSingle(ScenarioSource in) throws Exception, IOException {
+        int d = checkSize(in.nextInt());
+        int n = checkInsectCount(in.nextInt());
+        int m = checkFoodCount(in.nextInt());
+        Builder builder = new Builder();
+        readEntities(in, d, n, m, builder);
+        return builder.build();
+    }
+    /**
+     * Reads and validates one scenario from a stream of concatenated scenarios, see
+     * {@link #read(ScenarioTokenizer, ScenarioSink)}.
+     * @param in tokenizer positioned at the board size
+     * @return validated scenario
+     * @throws Exception the first validation error found, in input order
+     * @throws IOException if the input cannot be read
+     */
+    public static Scenario read(ScenarioTokenizer in) throws Exception, IOException {
+        Builder builder = new Builder();
+        read(in, builder);
+        return builder.build();
+    }
+    /**
+     * Reads and validates one scenario from a stream of concatenated scenarios into a sink, with the same checks
+     * and in the same order as {@link #readSingle}.
+     * The three header tokens are read before any of them is checked; on an error the rest of the scenario,
+     * as declared by its header, is skipped so that the tokenizer is positioned at the next scenario; if the
+     * counts are negative or malformed reading simply resumes after the header.
+     * A token that is not a number where one is expected, or the end of the input inside the scenario,
+     * is an {@link InvalidInputFormatException} of that scenario alone.
+     * @param in   tokenizer positioned at the board size
+     * @param sink receiver of the board size and the validated entities
+     * @throws Exception the first validation error found, in input order
+     * @throws IOException if the input cannot be read
+     */
+    public static void read(ScenarioTokenizer in, ScenarioSink sink) throws Exception, IOException {
+        long start = in.getTokenCount();
+        long end = -1;
+        try {
+            long d = in.nextHeaderNumber();
+            long n = in.nextHeaderNumber();
+            long m = in.nextHeaderNumber();
+            end = ScenarioTokenizer.scenarioEnd(start, n, m);
+            int size = checkSize(wellFormed(d));
+            int insectCount = checkInsectCount(wellFormed(n));
+            readEntities(in, size, insectCount, checkFoodCount(wellFormed(m)), sink);
+        } catch (NoSuchElementException e) {
+            // InputMismatchException included
+            skipRest(in, end);
+            throw new InvalidInputFormatException();
+        } catch (Exception e) {
+            skipRest(in, end);
+            throw e;
+        }
+    }
 
-                gameBoard.addEntity(insect);
-                insectsInOrder.add(insect);
-            }
+    private static int wellFormed(long value) throws InvalidInputFormatException {
+        if (value == ScenarioTokenizer.MALFORMED) {
+            throw new InvalidInputFormatException();
+        }
+        return (int) value;
+    }
 
-            for (int i = 0; i < m; i++) {
-                int amount = sc.nextInt();
-                int x = sc.nextInt();
-                int y = sc.nextInt();
+    private static void skipRest(ScenarioTokenizer in, long end) throws IOException {
+        if (end >= 0) {
+            in.skipTo(end);
+        }
+    }
 
-                if (x < minNumber || x > d || y < minNumber || y > d) {
-                    throw new InvalidEntityPositionException();
-                }
+    private static int checkSize(int d) throws InvalidBoardSizeException {
+        if (d < MIN_SIZE || d > MAX_SIZE) {
+            throw new InvalidBoardSizeException();
+        }
+        return d;
+    }
 
-                String cellKey = x + "," + y;
-                if (occupiedCells.contains(cellKey)) {
-                    throw new TwoEntitiesOnSamePositionException();
-                }
-                occupiedCells.add(cellKey);
+    private static int checkInsectCount(int n) throws InvalidNumberOfInsectsException {
+        if (n < MIN_NUMBER || n > MAX_NUMBER_OF_INSECTS) {
+            throw new InvalidNumberOfInsectsException();
+        }
+        return n;
+    }
+
+    private static int checkFoodCount(int m) throws InvalidNumberOfFoodPointsException {
+        if (m < MIN_NUMBER || m > MAX_NUMBER_OF_FOOD_POINTS) {
+            throw new InvalidNumberOfFoodPointsException();
+        }
+        return m;
+    }
+    /**
+     * Validates the insects and food points of a scenario whose header has been checked and hands them
+     * to the sink. These are the validation rules of every input path; only the checks of the header
+     * numbers are ordered by the callers.
+     * @param in   source positioned at the first insect
+     * @param d    board size
+     * @param n    number of insects
+     * @param m    number of food points
+     * @param sink receiver of the board size and the validated entities
+     * @throws Exception the first validation error found, in input order
+     * @throws IOException if the input cannot be read
+     */
+    private static void readEntities(ScenarioSource in, int d, int n, int m, ScenarioSink sink)
+            throws Exception, IOException {
+        sink.begin(d);
+        for (int i = 0; i < n; i++) {
+            int color = in.nextWord(ResultWriter.COLOR_NAMES);
+            int type = in.nextWord(ResultWriter.TYPE_NAMES);
+            int x = in.nextInt();
+            int y = in.nextInt();
+            if (color < 0) {
+                throw new InvalidInsectColorException();
+            }
+            if (type < 0) {
+                throw new InvalidInsectTypeException();
+            }
+            if (x < MIN_NUMBER || x > d || y < MIN_NUMBER || y > d) {
+                throw new InvalidEntityPositionException();
+            }
+            if (sink.hasInsect(type, color)) {
+                throw new DuplicateInsectException();
+            }
+            if (sink.isOccupied(x, y)) {
+                throw new TwoEntitiesOnSamePositionException();
+            }
+            sink.addInsect(type, color, x, y);
+        }
 
-                gameBoard.addEntity(new FoodPoint(new EntityPosition(x, y), amount));
+        for (int i = 0; i < m; i++) {
+            int amount = in.nextInt();
+            int x = in.nextInt();
+            int y = in.nextInt();
+            if (x < MIN_NUMBER || x > d || y < MIN_NUMBER || y > d) {
+                throw new InvalidEntityPositionException();
+            }
+            if (sink.isOccupied(x, y)) {
+                throw new TwoEntitiesOnSamePositionException();
             }
+            sink.addFood(amount, x, y);
+        }
+    }
+    /**
+     * Collects the validated entities into a {@link Scenario}.
+     */
+    private static final class Builder implements ScenarioSink {
+        private static final InsectType[] TYPES = InsectType.values();
+        private static final InsectColor[] COLORS = InsectColor.values();
 
-            for (Insect insect : insectsInOrder) {
-                Direction dir = gameBoard.getDirection(insect);
-                int eaten = gameBoard.getDirectionSum(insect);
+        private int size;
+        private final List<Insect> insects = new ArrayList<>();
+        private final List<FoodPoint> foodPoints = new ArrayList<>();
+        private final boolean[] typeColorUsed = new boolean[TYPES.length * COLORS.length];
+        private final Set<Integer> occupiedCells = new HashSet<>();
 
-                String colorStr = insect.color.name().charAt(0) + insect.color.name().substring(1).toLowerCase();
-                String name = insect.getClass().getSimpleName();
+        @Override
+        public void begin(int boardSize) {
+            this.size = boardSize;
+        }
 
-                String line = colorStr + " " + name + " " + dir.getTextRepresentation() + " " + eaten;
-                results.add(line);
-            }
+        @Override
+        public boolean hasInsect(int type, int color) {
+            return typeColorUsed[type * COLORS.length + color];
+        }
 
-        } catch (Exception e) {
-            error = e.getMessage();
-        } catch (IOException e) {
+        @Override
+        public boolean isOccupied(int x, int y) {
+            return occupiedCells.contains(cell(x, y));
         }
 
-        try (FileWriter fw = new FileWriter("output.txt")) {
-            if (error != null) {
-                fw.write(error + System.lineSeparator());
-            } else {
-                for (String s : results) {
-                    fw.write(s);
-                    fw.write(System.lineSeparator());
-                }
-            }
-        } catch (IOException ignored) {
+        @Override
+        public void addInsect(int type, int color, int x, int y) {
+            typeColorUsed[type * COLORS.length + color] = true;
+            occupiedCells.add(cell(x, y));
+            insects.add(TYPES[type].create(new EntityPosition(x, y), COLORS[color]));
+        }
+
+        @Override
+        public void addFood(int value, int x, int y) {
+            occupiedCells.add(cell(x, y));
+            foodPoints.add(new FoodPoint(new EntityPosition(x, y), value));
+        }
+
+        private static int cell(int x, int y) {
+            return x * (MAX_SIZE + 1) + y;
+        }
+
+        Scenario build() {
+            return new Scenario(size, insects, foodPoints);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public List<Insect> getInsects() {
+        return insects;
+    }
+
+    public List<FoodPoint> getFoodPoints() {
+        return foodPoints;
+    }
+    /**
+     * Creates a fresh board holding every insect and food point of this scenario.
+     * @return board in the initial state
+     */
+    public Board createBoard() {
+        Board board = new Board(size);
+        for (Insect insect : insects) {
+            board.addEntity(insect);
+        }
+        for (FoodPoint food : foodPoints) {
+            board.addEntity(food);
+        }
+        return board;
+    }
+    /**
+     * Creates a dense grid holding every insect and food point of this scenario.
+     * @return grid in the initial state
+     */
+    public DenseGrid createGrid() {
+        return fill(new DenseGrid(size));
+    }
+    /**
+     * Creates a sparse grid holding every insect and food point of this scenario.
+     * @return grid in the initial state
+     */
+    public SparseGrid createSparseGrid() {
+        return fill(new SparseGrid(size));
+    }
+
+    private <G extends CellGrid> G fill(G grid) {
+        for (Insect insect : insects) {
+            grid.put(insect);
+        }
+        for (FoodPoint food : foodPoints) {
+            grid.put(food);
+        }
+        return grid;
+    }
+    /**
+     * Lets every insect, in input order, choose its direction and travel along it.
+     * @return one output line per insect
+     */
+    public List<String> run() {
+        Board board = createBoard();
+        List<String> results = new ArrayList<>();
+        for (Insect insect : insects) {
+            Direction dir = board.getDirection(insect);
+            int eaten = board.getDirectionSum(insect);
+            results.add(describe(insect, dir, eaten));
         }
+        return results;
+    }
+    /**
+     * Formats one output line, e.g. "Red Ant North 5".
+     * @param insect insect that travelled
+     * @param dir    direction it chose
+     * @param eaten  total value of food it collected
+     * @return output line for the insect
+     */
+    public static String describe(Insect insect, Direction dir, int eaten) {
+        String colorStr = insect.color.name().charAt(0) + insect.color.name().substring(1).toLowerCase();
+        String name = insect.getClass().getSimpleName();
+        return colorStr + " " + name + " " + dir.getTextRepresentation() + " " + eaten;
     }
 }
 
@@ -149,18 +543,36 @@ public class Main {
  * Represents one of the eight possible movement directions on the board.
  */
 enum Direction {
-    N("North"),
-    E("East"),
-    S("South"),
-    W("West"),
-    NE("North-East"),
-    SE("South-East"),
-    SW("South-West"),
-    NW("North-West");
+    N("North", -1, 0),
+    E("East", 0, 1),
+    S("South", 1, 0),
+    W("West", 0, -1),
+    NE("North-East", -1, 1),
+    SE("South-East", 1, 1),
+    SW("South-West", 1, -1),
+    NW("North-West", -1, -1);
 
     private String textRepresentation;
-    private Direction(String text) {
+    private int rowStep;
+    private int columnStep;
+    private Direction(String text, int rowStep, int columnStep) {
         this.textRepresentation = text;
+        this.rowStep = rowStep;
+        this.columnStep = columnStep;
+    }
+    /**
+     * Returns the change of the x coordinate (row) for one step in this direction.
+     * @return -1, 0 or 1
+     */
+    public int getRowStep() {
+        return rowStep;
+    }
+    /**
+     * Returns the change of the y coordinate (column) for one step in this direction.
+     * @return -1, 0 or 1
+     */
+    public int getColumnStep() {
+        return columnStep;
     }
     /**
      * Returns the text representation of this direction.
@@ -176,6 +588,7 @@ enum Direction {
 class Board {
     private Map<String, BoardEntity> boardData;
     private int size;
+    private BoardLineIndex lineIndex;
     /**
      * Creates a new board of the given size.
      * @param boardSize size of the board (both width and height)
@@ -198,6 +611,7 @@ class Board {
      */
     public void addEntity(BoardEntity entity) {
         boardData.put(toKey(entity.getEntityPosition()), entity);
+        lineIndex = null;
     }
     /**
      * Returns the entity located at the given position.
@@ -207,6 +621,21 @@ class Board {
     public BoardEntity getEntity(EntityPosition position) {
         return boardData.get(toKey(position));
     }
+    /**
+     * Removes the entity located at the given position, if any.
+     * @param position board position to clear
+     */
+    public void removeEntity(EntityPosition position) {
+        boardData.remove(toKey(position));
+        lineIndex = null;
+    }
+    /**
+     * Returns the size of the board.
+     * @return size of the board (both width and height)
+     */
+    public int getSize() {
+        return size;
+    }
     /**
      * Computes the best movement direction for the given insect.
      * @param insect insect for which to compute direction
@@ -223,9 +652,279 @@ class Board {
      */
     public int getDirectionSum(Insect insect) {
         Direction dir = getDirection(insect);
+        lineIndex = null;
+        return insect.travelDirection(dir, boardData, size);
+    }
+    /**
+     * Moves the insect along the given direction like {@link #getDirectionSum(Insect)}
+     * and records the positions of the food points it eats on the way.
+     * @param insect insect that travels
+     * @param dir    direction of travel
+     * @param eatenPositions list that receives the positions of the eaten food, in travel order
+     * @return total value of food collected by the insect
+     */
+    public int travel(Insect insect, Direction dir, List<EntityPosition> eatenPositions) {
+        int stride = InsectType.of(insect).getStride();
+        int dx = stride * dir.getRowStep();
+        int dy = stride * dir.getColumnStep();
+        int x = insect.getEntityPosition().getX() + dx;
+        int y = insect.getEntityPosition().getY() + dy;
+        while (x >= 1 && x <= size && y >= 1 && y <= size) {
+            BoardEntity item = boardData.get(x + "," + y);
+            if (item instanceof FoodPoint) {
+                eatenPositions.add(new EntityPosition(x, y));
+            }
+            if (item instanceof Insect other && other.color != insect.color) {
+                break;
+            }
+            x += dx;
+            y += dy;
+        }
+        lineIndex = null;
         return insect.travelDirection(dir, boardData, size);
     }
+    /**
+     * Returns the line index of the current board state, building it on the first query after a change.
+     * @return up-to-date line index
+     */
+    private BoardLineIndex getLineIndex() {
+        if (lineIndex == null) {
+            lineIndex = new BoardLineIndex(boardData.values());
+        }
+        return lineIndex;
+    }
+
+    private void checkPosition(EntityPosition position) throws InvalidEntityPositionException {
+        int x = position.getX();
+        int y = position.getY();
+        if (x < 1 || x > size || y < 1 || y > size) {
+            throw new InvalidEntityPositionException();
+        }
+    }
+    /**
+     * Computes the food value a hypothetical insect would see in the given direction,
+     * without placing it on the board.
+     * @param type     type of the hypothetical insect
+     * @param position position of the hypothetical insect
+     * @param dir      direction to look in
+     * @return sum of visible food values, or 0 if the insect cannot look in that direction
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public int queryVisibleValue(InsectType type, EntityPosition position, Direction dir)
+            throws InvalidEntityPositionException {
+        checkPosition(position);
+        if (!type.looksIn(dir)) {
+            return 0;
+        }
+        return getLineIndex().visibleValue(position.getX(), position.getY(), dir, type.getStride());
+    }
+    /**
+     * Computes the direction a hypothetical insect would choose, without placing it on the board.
+     * @param type     type of the hypothetical insect
+     * @param position position of the hypothetical insect
+     * @return direction with the highest visible value, ties broken like {@link Insect#getBestDirection}
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public Direction queryBestDirection(InsectType type, EntityPosition position)
+            throws InvalidEntityPositionException {
+        checkPosition(position);
+        BoardLineIndex index = getLineIndex();
+        Direction[] directions = type.sharedDirections();
+        Direction bestDir = directions[0];
+        int bestValue = index.visibleValue(position.getX(), position.getY(), bestDir, type.getStride());
+        for (int i = 1; i < directions.length; i++) {
+            int value = index.visibleValue(position.getX(), position.getY(), directions[i], type.getStride());
+            if (value > bestValue) {
+                bestValue = value;
+                bestDir = directions[i];
+            }
+        }
+        return bestDir;
+    }
+    /**
+     * Computes the food a hypothetical insect would collect travelling in the given direction,
+     * without changing the board.
+     * @param type     type of the hypothetical insect
+     * @param color    color of the hypothetical insect
+     * @param position position of the hypothetical insect
+     * @param dir      direction of travel
+     * @return total value of food that would be collected, or 0 if the insect cannot move in that direction
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public int queryTravel(InsectType type, InsectColor color, EntityPosition position, Direction dir)
+            throws InvalidEntityPositionException {
+        checkPosition(position);
+        if (!type.looksIn(dir)) {
+            return 0;
+        }
+        return getLineIndex().travelValue(position.getX(), position.getY(), dir, type.getStride(), color);
+    }
+    /**
+     * Computes the food a hypothetical insect would collect travelling in its best direction,
+     * without changing the board.
+     * @param type     type of the hypothetical insect
+     * @param color    color of the hypothetical insect
+     * @param position position of the hypothetical insect
+     * @return total value of food that would be collected
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public int queryCollected(InsectType type, InsectColor color, EntityPosition position)
+            throws InvalidEntityPositionException {
+        return queryTravel(type, color, position, queryBestDirection(type, position));
+    }
+
+}
+/**
+ * Read-only index of the entities of a board grouped by row, column and both diagonals.
+ * Every line keeps its entities sorted along the line together with prefix sums of the food values,
+ * so the visible value of a ray is two binary searches and a travel only visits occupied cells.
+ */
+class BoardLineIndex {
+    private final Map<Integer, Line> rows = new HashMap<>();
+    private final Map<Integer, Line> columns = new HashMap<>();
+    private final Map<Integer, Line> diagonals = new HashMap<>();
+    private final Map<Integer, Line> antiDiagonals = new HashMap<>();
+    /**
+     * Builds the index from the entities currently on the board.
+     * @param entities entities of the board
+     */
+    BoardLineIndex(Collection<BoardEntity> entities) {
+        Map<Integer, List<BoardEntity>> rowEntities = new HashMap<>();
+        Map<Integer, List<BoardEntity>> columnEntities = new HashMap<>();
+        Map<Integer, List<BoardEntity>> diagonalEntities = new HashMap<>();
+        Map<Integer, List<BoardEntity>> antiDiagonalEntities = new HashMap<>();
+        for (BoardEntity entity : entities) {
+            int x = entity.getEntityPosition().getX();
+            int y = entity.getEntityPosition().getY();
+            rowEntities.computeIfAbsent(x, k -> new ArrayList<>()).add(entity);
+            columnEntities.computeIfAbsent(y, k -> new ArrayList<>()).add(entity);
+            diagonalEntities.computeIfAbsent(x - y, k -> new ArrayList<>()).add(entity);
+            antiDiagonalEntities.computeIfAbsent(x + y, k -> new ArrayList<>()).add(entity);
+        }
+        rowEntities.forEach((id, list) -> rows.put(id, new Line(list, false)));
+        columnEntities.forEach((id, list) -> columns.put(id, new Line(list, true)));
+        diagonalEntities.forEach((id, list) -> diagonals.put(id, new Line(list, true)));
+        antiDiagonalEntities.forEach((id, list) -> antiDiagonals.put(id, new Line(list, true)));
+    }
+    /**
+     * Returns the line through (x, y) that contains the ray in the given direction.
+     */
+    private Line lineOf(int x, int y, Direction dir) {
+        if (dir.getRowStep() == 0) {
+            return rows.get(x);
+        }
+        if (dir.getColumnStep() == 0) {
+            return columns.get(y);
+        }
+        if (dir.getRowStep() == dir.getColumnStep()) {
+            return diagonals.get(x - y);
+        }
+        return antiDiagonals.get(x + y);
+    }
+    /**
+     * Computes the sum of food values on the ray from (x, y) in the given direction.
+     * @param x      x coordinate of the ray origin
+     * @param y      y coordinate of the ray origin
+     * @param dir    direction of the ray
+     * @param stride step length along the ray (1 or 2)
+     * @return sum of food values on the cells of the ray
+     */
+    int visibleValue(int x, int y, Direction dir, int stride) {
+        Line line = lineOf(x, y, dir);
+        if (line == null) {
+            return 0;
+        }
+        boolean rowLine = dir.getRowStep() == 0;
+        int origin = rowLine ? y : x;
+        int step = rowLine ? dir.getColumnStep() : dir.getRowStep();
+        int[] prefix = stride == 1 ? line.foodPrefix : line.parityFoodPrefix[origin & 1];
+        if (step > 0) {
+            return prefix[line.coordinates.length] - prefix[line.firstAfter(origin)];
+        }
+        return prefix[line.firstAtOrAfter(origin)];
+    }
+    /**
+     * Computes the food collected by travelling from (x, y) in the given direction
+     * until the edge of the board or an insect of another color.
+     * @param x      x coordinate of the ray origin
+     * @param y      y coordinate of the ray origin
+     * @param dir    direction of travel
+     * @param stride step length along the ray (1 or 2)
+     * @param color  color of the travelling insect
+     * @return total value of food that would be collected
+     */
+    int travelValue(int x, int y, Direction dir, int stride, InsectColor color) {
+        Line line = lineOf(x, y, dir);
+        if (line == null) {
+            return 0;
+        }
+        boolean rowLine = dir.getRowStep() == 0;
+        int origin = rowLine ? y : x;
+        int step = rowLine ? dir.getColumnStep() : dir.getRowStep();
+        int i = step > 0 ? line.firstAfter(origin) : line.firstAtOrAfter(origin) - 1;
+        int sum = 0;
+        for (; i >= 0 && i < line.coordinates.length; i += step) {
+            if ((line.coordinates[i] - origin) % stride != 0) {
+                continue;
+            }
+            BoardEntity item = line.entities[i];
+            if (item instanceof FoodPoint food) {
+                sum += food.value;
+            }
+            if (item instanceof Insect insect && insect.color != color) {
+                break;
+            }
+        }
+        return sum;
+    }
+    /**
+     * Entities of one line sorted by their coordinate along it.
+     */
+    private static final class Line {
+        private final int[] coordinates;
+        private final BoardEntity[] entities;
+        private final int[] foodPrefix;
+        private final int[][] parityFoodPrefix;
+
+        Line(List<BoardEntity> list, boolean byX) {
+            list.sort(Comparator.comparingInt(e -> coordinate(e, byX)));
+            int n = list.size();
+            coordinates = new int[n];
+            entities = list.toArray(new BoardEntity[0]);
+            foodPrefix = new int[n + 1];
+            parityFoodPrefix = new int[2][n + 1];
+            for (int i = 0; i < n; i++) {
+                coordinates[i] = coordinate(entities[i], byX);
+                int value = entities[i] instanceof FoodPoint food ? food.value : 0;
+                int parity = coordinates[i] & 1;
+                foodPrefix[i + 1] = foodPrefix[i] + value;
+                parityFoodPrefix[parity][i + 1] = parityFoodPrefix[parity][i] + value;
+                parityFoodPrefix[1 - parity][i + 1] = parityFoodPrefix[1 - parity][i];
+            }
+        }
+
+        private static int coordinate(BoardEntity entity, boolean byX) {
+            return byX ? entity.getEntityPosition().getX() : entity.getEntityPosition().getY();
+        }
+
+        int firstAfter(int coordinate) {
+            return firstAtOrAfter(coordinate + 1);
+        }
 
+        int firstAtOrAfter(int coordinate) {
+            int low = 0;
+            int high = coordinates.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (coordinates[mid] < coordinate) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
 }
 /**
  * Immutable position of an entity on the board.
@@ -277,20 +976,155 @@ enum InsectColor {
     }
 }
 /**
- * Base class for any entity that can be placed on the board.
+ * Represents the insect types together with the directions they look in and their step length.
  */
-abstract class BoardEntity {
-    protected EntityPosition entityPosition;
-
-    public BoardEntity(EntityPosition entityPosition) {
-        this.entityPosition = entityPosition;
-    }
+enum InsectType {
+    ANT("Ant", 1, Direction.N, Direction.E, Direction.S, Direction.W,
+            Direction.NE, Direction.SE, Direction.SW, Direction.NW),
+    BUTTERFLY("Butterfly", 1, Direction.N, Direction.E, Direction.S, Direction.W),
+    SPIDER("Spider", 1, Direction.NE, Direction.SE, Direction.SW, Direction.NW),
+    GRASSHOPPER("Grasshopper", 2, Direction.N, Direction.E, Direction.S, Direction.W);
 
-    public EntityPosition getEntityPosition() {
-        return entityPosition;
+    private String textRepresentation;
+    private int stride;
+    private Direction[] directions;
+    private InsectType(String text, int stride, Direction... directions) {
+        this.textRepresentation = text;
+        this.stride = stride;
+        this.directions = directions;
     }
-}
-/**
+    /**
+     * Converts a string from input into the corresponding insect type.
+     * @param s type string from input
+     * @return matching InsectType value
+     * @throws InvalidInsectTypeException if the type string is not supported
+     */
+    public static InsectType toType(String s) throws InvalidInsectTypeException {
+        switch (s) {
+            case "Ant":
+                return ANT;
+            case "Butterfly":
+                return BUTTERFLY;
+            case "Spider":
+                return SPIDER;
+            case "Grasshopper":
+                return GRASSHOPPER;
+            default:
+                throw new InvalidInsectTypeException();
+        }
+    }
+    /**
+     * Returns the type of the given insect.
+     * @param insect insect to classify
+     * @return type of the insect
+     */
+    public static InsectType of(Insect insect) {
+        if (insect instanceof Ant) {
+            return ANT;
+        }
+        if (insect instanceof Butterfly) {
+            return BUTTERFLY;
+        }
+        if (insect instanceof Spider) {
+            return SPIDER;
+        }
+        return GRASSHOPPER;
+    }
+    /**
+     * Creates an insect of this type.
+     * @param position position of the insect
+     * @param color    color of the insect
+     * @return new insect
+     */
+    public Insect create(EntityPosition position, InsectColor color) {
+        switch (this) {
+            case ANT:
+                return new Ant(position, color);
+            case BUTTERFLY:
+                return new Butterfly(position, color);
+            case SPIDER:
+                return new Spider(position, color);
+            default:
+                return new Grasshopper(position, color);
+        }
+    }
+
+    public String getTextRepresentation() {
+        return textRepresentation;
+    }
+    /**
+     * Returns the number of cells covered by one step of this insect.
+     * @return step length
+     */
+    public int getStride() {
+        return stride;
+    }
+    /**
+     * Returns the directions this insect looks in, in the order used to break ties.
+     * @return directions in tie-breaking order
+     */
+    public Direction[] getDirections() {
+        return directions.clone();
+    }
+    /**
+     * Returns the directions this insect looks in without copying them, for the query and simulation paths.
+     * @return shared array in tie-breaking order; callers must not modify it
+     */
+    Direction[] sharedDirections() {
+        return directions;
+    }
+    /**
+     * Checks whether this insect looks in and moves in the given direction.
+     * @param dir direction to check
+     * @return true if the direction is one of this insect's directions
+     */
+    public boolean looksIn(Direction dir) {
+        for (Direction direction : directions) {
+            if (direction == dir) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Checks whether an insect of this type standing at (fromX, fromY) can see or reach the cell (x, y)
+     * along one of its directions.
+     * @param fromX x coordinate of the insect
+     * @param fromY y coordinate of the insect
+     * @param x     x coordinate of the cell
+     * @param y     y coordinate of the cell
+     * @return true if the cell lies on one of the insect's rays
+     */
+    public boolean sees(int fromX, int fromY, int x, int y) {
+        int dx = x - fromX;
+        int dy = y - fromY;
+        int steps = Math.max(Math.abs(dx), Math.abs(dy));
+        if (steps == 0 || steps % stride != 0) {
+            return false;
+        }
+        for (Direction dir : directions) {
+            if (dir.getRowStep() * steps == dx && dir.getColumnStep() * steps == dy) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+/**
+ * Base class for any entity that can be placed on the board.
+ */
+abstract class BoardEntity {
+    protected EntityPosition entityPosition;
+
+    public BoardEntity(EntityPosition entityPosition) {
+        this.entityPosition = entityPosition;
+    }
+
+    public EntityPosition getEntityPosition() {
+        return entityPosition;
+    }
+}
+/**
  * Food point on the board with a certain value.
  */
 class FoodPoint extends BoardEntity {
@@ -406,6 +1240,18 @@ class InvalidBoardSizeException extends Exception {
         return "Invalid board size";
     }
 }
+/**
+ * Thrown by the batch modes when a scenario has a token that is not a number where one is expected,
+ * or the input ends inside it.
+ */
+class InvalidInputFormatException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String getMessage() {
+        return "Invalid input format";
+    }
+}
 /**
  * Defines behavior for insects that can move in orthogonal directions.
  */
@@ -553,6 +1399,9 @@ class Butterfly extends Insect implements OrthogonalMoving {
         int y = entityPosition.getY() + dy;
         String oldKey = entityPosition.getX() + "," + entityPosition.getY();
         boardData.remove(oldKey);
+        if (TravelTrace.ENABLED) {
+            TravelTrace.start(InsectType.BUTTERFLY, color, dir, entityPosition);
+        }
         int sum = 0;
         while (x >= 1 && x <= boardSize && y >= 1 && y <= boardSize) {
             String key = x + "," + y;
@@ -560,6 +1409,9 @@ class Butterfly extends Insect implements OrthogonalMoving {
             if (item instanceof FoodPoint food) {
                 sum += food.value;
                 boardData.remove(key);
+                if (TravelTrace.ENABLED) {
+                    TravelTrace.eat(InsectType.BUTTERFLY, color, x, y, food.value);
+                }
             }
             if (item instanceof Insect insect) {
                 if (insect.color != color) {
@@ -569,6 +1421,9 @@ class Butterfly extends Insect implements OrthogonalMoving {
             x += dx;
             y += dy;
         }
+        if (TravelTrace.ENABLED) {
+            TravelTrace.stop(InsectType.BUTTERFLY, color, x, y, boardSize, sum);
+        }
         return sum;
     }
 
@@ -681,6 +1536,9 @@ class Spider extends Insect implements DiagonalMoving {
         int y = entityPosition.getY() + dy;
         String oldKey = entityPosition.getX() + "," + entityPosition.getY();
         boardData.remove(oldKey);
+        if (TravelTrace.ENABLED) {
+            TravelTrace.start(InsectType.SPIDER, color, dir, entityPosition);
+        }
         int sum = 0;
         while (x >= 1 && x <= boardSize && y >= 1 && y <= boardSize) {
             String key = x + "," + y;
@@ -688,6 +1546,9 @@ class Spider extends Insect implements DiagonalMoving {
             if (item instanceof FoodPoint food) {
                 sum += food.value;
                 boardData.remove(key);
+                if (TravelTrace.ENABLED) {
+                    TravelTrace.eat(InsectType.SPIDER, color, x, y, food.value);
+                }
             }
             if (item instanceof Insect insect) {
                 if (insect.color != color) {
@@ -697,6 +1558,9 @@ class Spider extends Insect implements DiagonalMoving {
             x += dx;
             y += dy;
         }
+        if (TravelTrace.ENABLED) {
+            TravelTrace.stop(InsectType.SPIDER, color, x, y, boardSize, sum);
+        }
         return sum;
     }
 
@@ -809,6 +1673,9 @@ class Ant extends Insect implements DiagonalMoving, OrthogonalMoving {
         int y = entityPosition.getY() + dy;
         String oldKey = entityPosition.getX() + "," + entityPosition.getY();
         boardData.remove(oldKey);
+        if (TravelTrace.ENABLED) {
+            TravelTrace.start(InsectType.ANT, color, dir, entityPosition);
+        }
         int sum = 0;
         while (x >= 1 && x <= boardSize && y >= 1 && y <= boardSize) {
             String key = x + "," + y;
@@ -816,6 +1683,9 @@ class Ant extends Insect implements DiagonalMoving, OrthogonalMoving {
             if (item instanceof FoodPoint food) {
                 sum += food.value;
                 boardData.remove(key);
+                if (TravelTrace.ENABLED) {
+                    TravelTrace.eat(InsectType.ANT, color, x, y, food.value);
+                }
             }
             if (item instanceof Insect insect) {
                 if (insect.color != color) {
@@ -825,6 +1695,9 @@ class Ant extends Insect implements DiagonalMoving, OrthogonalMoving {
             x += dx;
             y += dy;
         }
+        if (TravelTrace.ENABLED) {
+            TravelTrace.stop(InsectType.ANT, color, x, y, boardSize, sum);
+        }
         return sum;
     }
 
@@ -897,6 +1770,9 @@ class Ant extends Insect implements DiagonalMoving, OrthogonalMoving {
         int y = entityPosition.getY() + dy;
         String oldKey = entityPosition.getX() + "," + entityPosition.getY();
         boardData.remove(oldKey);
+        if (TravelTrace.ENABLED) {
+            TravelTrace.start(InsectType.ANT, color, dir, entityPosition);
+        }
         int sum = 0;
         while (x >= 1 && x <= boardSize && y >= 1 && y <= boardSize) {
             String key = x + "," + y;
@@ -904,6 +1780,9 @@ class Ant extends Insect implements DiagonalMoving, OrthogonalMoving {
             if (item instanceof FoodPoint food) {
                 sum += food.value;
                 boardData.remove(key);
+                if (TravelTrace.ENABLED) {
+                    TravelTrace.eat(InsectType.ANT, color, x, y, food.value);
+                }
             }
             if (item instanceof Insect insect) {
                 if (insect.color != color) {
@@ -913,6 +1792,9 @@ class Ant extends Insect implements DiagonalMoving, OrthogonalMoving {
             x += dx;
             y += dy;
         }
+        if (TravelTrace.ENABLED) {
+            TravelTrace.stop(InsectType.ANT, color, x, y, boardSize, sum);
+        }
         return sum;
     }
 
@@ -1058,6 +1940,9 @@ class Grasshopper extends Insect {
         int y = entityPosition.getY() + (2 * dy);
         String oldKey = entityPosition.getX() + "," + entityPosition.getY();
         boardData.remove(oldKey);
+        if (TravelTrace.ENABLED) {
+            TravelTrace.start(InsectType.GRASSHOPPER, color, dir, entityPosition);
+        }
         int sum = 0;
         while (x >= 1 && x <= boardSize && y >= 1 && y <= boardSize) {
             String key = x + "," + y;
@@ -1065,6 +1950,9 @@ class Grasshopper extends Insect {
             if (item instanceof FoodPoint food) {
                 sum += food.value;
                 boardData.remove(key);
+                if (TravelTrace.ENABLED) {
+                    TravelTrace.eat(InsectType.GRASSHOPPER, color, x, y, food.value);
+                }
             }
             if (item instanceof Insect insect) {
                 if (insect.color != color) {
@@ -1074,6 +1962,9 @@ class Grasshopper extends Insect {
             x += 2 * dx;
             y += 2 * dy;
         }
+        if (TravelTrace.ENABLED) {
+            TravelTrace.stop(InsectType.GRASSHOPPER, color, x, y, boardSize, sum);
+        }
         return sum;
     }
 
@@ -1107,3 +1998,4218 @@ class Grasshopper extends Insect {
     }
 
 }
+/**
+ * Small set of food changes applied on top of a base scenario.
+ */
+class ScenarioDelta {
+    private final List<FoodPoint> addedFood = new ArrayList<>();
+    private final List<EntityPosition> removedFood = new ArrayList<>();
+    /**
+     * Adds a food point, or replaces the value of one removed in the same delta.
+     * @param x     x coordinate of the food point
+     * @param y     y coordinate of the food point
+     * @param value nutritional value of the food point
+     * @return this delta
+     */
+    public ScenarioDelta addFood(int x, int y, int value) {
+        addedFood.add(new FoodPoint(new EntityPosition(x, y), value));
+        return this;
+    }
+    /**
+     * Removes the food point located at the given cell of the base scenario.
+     * @param x x coordinate of the food point
+     * @param y y coordinate of the food point
+     * @return this delta
+     */
+    public ScenarioDelta removeFood(int x, int y) {
+        removedFood.add(new EntityPosition(x, y));
+        return this;
+    }
+    /**
+     * Returns every cell whose content is changed by this delta.
+     * @return changed positions
+     */
+    public List<EntityPosition> getChangedPositions() {
+        List<EntityPosition> changed = new ArrayList<>(removedFood);
+        for (FoodPoint food : addedFood) {
+            changed.add(food.getEntityPosition());
+        }
+        return changed;
+    }
+    /**
+     * Builds the scenario obtained by applying this delta to the base one, validating it the same way
+     * as the input.
+     * @param base scenario to start from
+     * @return scenario with the changed food points
+     * @throws Exception if a position is outside the board or not removable, two entities share a cell
+     *                   or the resulting number of food points is invalid
+     */
+    public Scenario applyTo(Scenario base) throws Exception {
+        int d = base.getSize();
+        Map<String, FoodPoint> food = new HashMap<>();
+        for (FoodPoint point : base.getFoodPoints()) {
+            food.put(toKey(point.getEntityPosition()), point);
+        }
+        for (EntityPosition position : removedFood) {
+            if (food.remove(toKey(position)) == null) {
+                throw new InvalidEntityPositionException();
+            }
+        }
+        Set<String> occupiedCells = new HashSet<>(food.keySet());
+        for (Insect insect : base.getInsects()) {
+            occupiedCells.add(toKey(insect.getEntityPosition()));
+        }
+        List<FoodPoint> foodPoints = new ArrayList<>();
+        for (FoodPoint point : base.getFoodPoints()) {
+            if (food.containsKey(toKey(point.getEntityPosition()))) {
+                foodPoints.add(point);
+            }
+        }
+        for (FoodPoint point : addedFood) {
+            int x = point.getEntityPosition().getX();
+            int y = point.getEntityPosition().getY();
+            if (x < Scenario.MIN_NUMBER || x > d || y < Scenario.MIN_NUMBER || y > d) {
+                throw new InvalidEntityPositionException();
+            }
+            if (!occupiedCells.add(toKey(point.getEntityPosition()))) {
+                throw new TwoEntitiesOnSamePositionException();
+            }
+            foodPoints.add(point);
+        }
+        if (foodPoints.size() < Scenario.MIN_NUMBER || foodPoints.size() > Scenario.MAX_NUMBER_OF_FOOD_POINTS) {
+            throw new InvalidNumberOfFoodPointsException();
+        }
+        return new Scenario(d, base.getInsects(), foodPoints);
+    }
+
+    private static String toKey(EntityPosition position) {
+        return position.getX() + "," + position.getY();
+    }
+}
+/**
+ * Recorded outcome of running a scenario: for every insect its direction, the value it collected
+ * and the positions of the food it ate.
+ */
+class ScenarioRun {
+    private final Scenario scenario;
+    private final Direction[] directions;
+    private final int[] eaten;
+    private final List<List<EntityPosition>> eatenPositions;
+    private int recomputedInsects;
+
+    public ScenarioRun(Scenario scenario) {
+        int n = scenario.getInsects().size();
+        this.scenario = scenario;
+        this.directions = new Direction[n];
+        this.eaten = new int[n];
+        this.eatenPositions = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            eatenPositions.add(new ArrayList<>());
+        }
+    }
+
+    public Scenario getScenario() {
+        return scenario;
+    }
+
+    public Direction getDirection(int insectIndex) {
+        return directions[insectIndex];
+    }
+
+    public int getEaten(int insectIndex) {
+        return eaten[insectIndex];
+    }
+
+    public List<EntityPosition> getEatenPositions(int insectIndex) {
+        return eatenPositions.get(insectIndex);
+    }
+    /**
+     * Returns how many insects were actually simulated to produce this run.
+     * @return number of insects whose direction and travel were computed
+     */
+    public int getRecomputedInsects() {
+        return recomputedInsects;
+    }
+
+    void record(int insectIndex, Direction dir, int value, List<EntityPosition> positions, boolean recomputed) {
+        directions[insectIndex] = dir;
+        eaten[insectIndex] = value;
+        eatenPositions.set(insectIndex, positions);
+        if (recomputed) {
+            recomputedInsects++;
+        }
+    }
+    /**
+     * Formats the run the same way as output.txt.
+     * @return one output line per insect
+     */
+    public List<String> getResults() {
+        List<String> results = new ArrayList<>();
+        List<Insect> insects = scenario.getInsects();
+        for (int i = 0; i < insects.size(); i++) {
+            results.add(Scenario.describe(insects.get(i), directions[i], eaten[i]));
+        }
+        return results;
+    }
+}
+/**
+ * Re-runs scenarios after small food changes, simulating only the insects whose rays contain a changed cell
+ * and replaying the recorded outcome of all others.
+ */
+class IncrementalSimulator {
+    /**
+     * Runs the whole scenario and records the outcome of every insect.
+     * @param scenario scenario to run
+     * @return recorded run
+     */
+    public static ScenarioRun run(Scenario scenario) {
+        Board board = scenario.createBoard();
+        ScenarioRun run = new ScenarioRun(scenario);
+        List<Insect> insects = scenario.getInsects();
+        for (int i = 0; i < insects.size(); i++) {
+            Insect insect = insects.get(i);
+            Direction dir = board.getDirection(insect);
+            List<EntityPosition> positions = new ArrayList<>();
+            int value = board.travel(insect, dir, positions);
+            run.record(i, dir, value, positions, true);
+        }
+        return run;
+    }
+    /**
+     * Applies the delta to the scenario of the base run and produces the same results as a full run
+     * of the changed scenario.
+     * An insect is simulated again only if one of its rays contains a cell that differs from the base run
+     * at the moment it moves: a changed food point, or food eaten differently by an earlier re-simulated insect.
+     * @param base  recorded run of the base scenario
+     * @param delta food changes to apply
+     * @return recorded run of the changed scenario
+     * @throws Exception if the delta is invalid for the base scenario
+     */
+    public static ScenarioRun rerun(ScenarioRun base, ScenarioDelta delta) throws Exception {
+        Scenario scenario = delta.applyTo(base.getScenario());
+        Board board = scenario.createBoard();
+        ScenarioRun run = new ScenarioRun(scenario);
+        List<EntityPosition> dirtyCells = new ArrayList<>(delta.getChangedPositions());
+        Set<String> dirtyKeys = new HashSet<>();
+        for (EntityPosition position : dirtyCells) {
+            dirtyKeys.add(position.getX() + "," + position.getY());
+        }
+        List<Insect> insects = scenario.getInsects();
+        for (int i = 0; i < insects.size(); i++) {
+            Insect insect = insects.get(i);
+            List<EntityPosition> oldPositions = base.getEatenPositions(i);
+            if (!isAffected(insect, dirtyCells)) {
+                board.removeEntity(insect.getEntityPosition());
+                for (EntityPosition position : oldPositions) {
+                    board.removeEntity(position);
+                }
+                run.record(i, base.getDirection(i), base.getEaten(i), oldPositions, false);
+                continue;
+            }
+            Direction dir = board.getDirection(insect);
+            List<EntityPosition> positions = new ArrayList<>();
+            int value = board.travel(insect, dir, positions);
+            run.record(i, dir, value, positions, true);
+            markDifference(oldPositions, positions, dirtyCells, dirtyKeys);
+            markDifference(positions, oldPositions, dirtyCells, dirtyKeys);
+        }
+        return run;
+    }
+
+    private static boolean isAffected(Insect insect, List<EntityPosition> dirtyCells) {
+        InsectType type = InsectType.of(insect);
+        int x = insect.getEntityPosition().getX();
+        int y = insect.getEntityPosition().getY();
+        for (EntityPosition cell : dirtyCells) {
+            if (type.sees(x, y, cell.getX(), cell.getY())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Marks as dirty every position of the first list that is missing from the second one.
+     */
+    private static void markDifference(List<EntityPosition> positions, List<EntityPosition> others,
+                                       List<EntityPosition> dirtyCells, Set<String> dirtyKeys) {
+        Set<String> otherKeys = new HashSet<>();
+        for (EntityPosition position : others) {
+            otherKeys.add(position.getX() + "," + position.getY());
+        }
+        for (EntityPosition position : positions) {
+            String key = position.getX() + "," + position.getY();
+            if (!otherKeys.contains(key) && dirtyKeys.add(key)) {
+                dirtyCells.add(position);
+            }
+        }
+    }
+}
+/**
+ * Cells of a square board addressed by 1-based coordinates, holding food values and insect colors;
+ * the storage behind the {@link InsectStore} kernel.
+ */
+interface CellGrid {
+    byte EMPTY = 0;
+    byte FOOD = 1;
+    byte INSECT = 2;
+
+    int getSize();
+    /**
+     * Empties the grid and resizes it.
+     * @param newSize new size of the board (both width and height)
+     */
+    void reset(int newSize);
+
+    void putFood(int x, int y, int value);
+
+    void putInsect(int x, int y, int colorIndex);
+
+    void clear(int x, int y);
+    /**
+     * Sums the food on the ray starting one step away from (x, y).
+     * @param x  x coordinate of the ray origin
+     * @param y  y coordinate of the ray origin
+     * @param dx change of x per step
+     * @param dy change of y per step
+     * @return sum of visible food values
+     */
+    int visibleValue(int x, int y, int dx, int dy);
+    /**
+     * Moves an insect from (x, y) along the ray, eating food until the edge of the board
+     * or an insect of another color, and removes the insect from its cell.
+     * @param x          x coordinate of the insect
+     * @param y          y coordinate of the insect
+     * @param dx         change of x per step
+     * @param dy         change of y per step
+     * @param colorIndex ordinal of the insect color
+     * @return total value of collected food
+     */
+    int travel(int x, int y, int dx, int dy, int colorIndex);
+    /**
+     * Places a board entity into its cell.
+     * @param entity food point or insect
+     */
+    default void put(BoardEntity entity) {
+        int x = entity.getEntityPosition().getX();
+        int y = entity.getEntityPosition().getY();
+        if (entity instanceof FoodPoint food) {
+            putFood(x, y, food.value);
+        } else if (entity instanceof Insect insect) {
+            putInsect(x, y, insect.color.ordinal());
+        }
+    }
+    /**
+     * Computes the best direction of an insect of the given type standing at (x, y).
+     * @param type insect type
+     * @param x    x coordinate of the insect
+     * @param y    y coordinate of the insect
+     * @return direction with the highest visible value, first one on ties
+     */
+    default Direction bestDirection(InsectType type, int x, int y) {
+        int stride = type.getStride();
+        Direction bestDir = null;
+        int bestValue = 0;
+        for (Direction dir : type.sharedDirections()) {
+            int value = visibleValue(x, y, stride * dir.getRowStep(), stride * dir.getColumnStep());
+            if (bestDir == null || value > bestValue) {
+                bestValue = value;
+                bestDir = dir;
+            }
+        }
+        return bestDir;
+    }
+}
+/**
+ * Square board stored as two flat primitive arrays indexed by cell: the kind of entity
+ * in the cell and, for food points, its value.
+ * The order of the cells in the arrays is given by a {@link Layout}; the default one is read from
+ * {@code -Dinsects.layout=row-major|morton}.
+ */
+class DenseGrid implements CellGrid {
+    static final String LAYOUT_PROPERTY = "insects.layout";
+    static final Layout DEFAULT_LAYOUT = Layout.of(System.getProperty(LAYOUT_PROPERTY, Layout.ROW_MAJOR.text));
+    private static final int INITIAL_TOUCHED = 256;
+    private static final int MAX_TOUCHED_SHARE = 8;
+    /**
+     * Order of the cells in memory.
+     */
+    enum Layout {
+        /**
+         * Row after row; steps along a row are adjacent, any other step jumps a whole row.
+         */
+        ROW_MAJOR("row-major"),
+        /**
+         * Z-order: the bits of the row and the column are interleaved, so cells close on the board in any
+         * direction are mostly close in memory. The side is padded to the next power of two.
+         */
+        MORTON("morton");
+
+        private final String text;
+
+        Layout(String text) {
+            this.text = text;
+        }
+        /**
+         * Converts the name of a layout to the layout.
+         * @param text name of the layout
+         * @return layout with that name
+         * @throws IllegalArgumentException if there is no such layout
+         */
+        static Layout of(String text) {
+            for (Layout layout : values()) {
+                if (layout.text.equals(text)) {
+                    return layout;
+                }
+            }
+            throw new IllegalArgumentException("Unknown layout: " + text);
+        }
+
+        String getText() {
+            return text;
+        }
+        /**
+         * Number of cells the arrays need for a board of the given size.
+         * @param size size of the board (both width and height)
+         * @return number of cells including padding
+         */
+        int capacity(int size) {
+            if (this == ROW_MAJOR) {
+                return size * size;
+            }
+            int side = paddedSide(size);
+            return side * side;
+        }
+
+        static int paddedSide(int size) {
+            return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        }
+    }
+
+    private final Layout layout;
+    private int size;
+    private byte[] kinds;
+    private int[] values;
+    /**
+     * Bits of a 0-based coordinate moved to the even bit positions, for {@link Layout#MORTON} only.
+     */
+    private int[] spread;
+    /**
+     * Indices of the cells written since the last reset, so that a reset only clears those.
+     */
+    private int[] touched = new int[INITIAL_TOUCHED];
+    private int touchedCount;
+    private boolean touchedOverflow;
+    /**
+     * Creates an empty grid.
+     * @param size size of the board (both width and height)
+     */
+    DenseGrid(int size) {
+        this(size, DEFAULT_LAYOUT);
+    }
+    /**
+     * Creates an empty grid with the given cell order.
+     * @param size   size of the board (both width and height)
+     * @param layout order of the cells in memory
+     */
+    DenseGrid(int size, Layout layout) {
+        this.layout = layout;
+        this.size = size;
+        this.kinds = new byte[layout.capacity(size)];
+        this.values = new int[layout.capacity(size)];
+        buildSpread(size);
+    }
+
+    private void buildSpread(int newSize) {
+        if (layout != Layout.MORTON || spread != null && spread.length >= newSize) {
+            return;
+        }
+        spread = new int[Layout.paddedSide(newSize)];
+        for (int v = 1; v < spread.length; v++) {
+            spread[v] = spread[v >> 1] << 2 | v & 1;
+        }
+    }
+    /**
+     * Empties the grid and resizes it, reusing the arrays when they are large enough.
+     * Costs O(cells written since the last reset) unless that number grew past a share of the grid.
+     * @param newSize new size of the board (both width and height)
+     */
+    @Override
+    public void reset(int newSize) {
+        if (touchedOverflow) {
+            Arrays.fill(kinds, EMPTY);
+            Arrays.fill(values, 0);
+        } else {
+            for (int k = 0; k < touchedCount; k++) {
+                kinds[touched[k]] = EMPTY;
+                values[touched[k]] = 0;
+            }
+        }
+        touchedCount = 0;
+        touchedOverflow = false;
+        if (layout.capacity(newSize) > kinds.length) {
+            kinds = new byte[layout.capacity(newSize)];
+            values = new int[layout.capacity(newSize)];
+        }
+        buildSpread(newSize);
+        size = newSize;
+    }
+
+    private void touch(int i) {
+        if (touchedOverflow) {
+            return;
+        }
+        if (touchedCount == touched.length) {
+            if (touched.length >= kinds.length / MAX_TOUCHED_SHARE) {
+                touchedOverflow = true;
+                return;
+            }
+            touched = Arrays.copyOf(touched, touched.length * 2);
+        }
+        touched[touchedCount++] = i;
+    }
+
+    boolean isEmpty(int x, int y) {
+        return kinds[index(x, y)] == EMPTY;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    Layout getLayout() {
+        return layout;
+    }
+    /**
+     * Converts 1-based board coordinates to a cell index.
+     * @param x x coordinate (row)
+     * @param y y coordinate (column)
+     * @return index of the cell in the arrays
+     */
+    int index(int x, int y) {
+        if (layout == Layout.MORTON) {
+            return spread[x - 1] << 1 | spread[y - 1];
+        }
+        return (x - 1) * size + (y - 1);
+    }
+    @Override
+    public void putFood(int x, int y, int value) {
+        int i = index(x, y);
+        touch(i);
+        kinds[i] = FOOD;
+        values[i] = value;
+    }
+
+    @Override
+    public void putInsect(int x, int y, int colorIndex) {
+        int i = index(x, y);
+        touch(i);
+        kinds[i] = INSECT;
+        values[i] = colorIndex;
+    }
+
+    @Override
+    public void clear(int x, int y) {
+        int i = index(x, y);
+        kinds[i] = EMPTY;
+        values[i] = 0;
+    }
+    @Override
+    public int visibleValue(int x, int y, int dx, int dy) {
+        int sum = 0;
+        x += dx;
+        y += dy;
+        while (x >= 1 && x <= size && y >= 1 && y <= size) {
+            int i = index(x, y);
+            if (kinds[i] == FOOD) {
+                sum += values[i];
+            }
+            x += dx;
+            y += dy;
+        }
+        return sum;
+    }
+    /**
+     * Sums the food on the steps fromStep (inclusive) to toStep (exclusive) of the ray from (x, y);
+     * all of them must be on the board.
+     * @param x        x coordinate of the ray origin
+     * @param y        y coordinate of the ray origin
+     * @param dx       change of x per step
+     * @param dy       change of y per step
+     * @param fromStep first step of the segment, at least 1
+     * @param toStep   step after the last one of the segment
+     * @return sum of food values on the segment
+     */
+    int segmentValue(int x, int y, int dx, int dy, int fromStep, int toStep) {
+        int sum = 0;
+        for (int k = fromStep; k < toStep; k++) {
+            int i = index(x + k * dx, y + k * dy);
+            if (kinds[i] == FOOD) {
+                sum += values[i];
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public int travel(int x, int y, int dx, int dy, int colorIndex) {
+        clear(x, y);
+        int sum = 0;
+        x += dx;
+        y += dy;
+        while (x >= 1 && x <= size && y >= 1 && y <= size) {
+            int i = index(x, y);
+            if (kinds[i] == FOOD) {
+                sum += values[i];
+                kinds[i] = EMPTY;
+                values[i] = 0;
+            } else if (kinds[i] == INSECT && values[i] != colorIndex) {
+                break;
+            }
+            x += dx;
+            y += dy;
+        }
+        return sum;
+    }
+}
+/**
+ * Board that can be shared between many reading threads and a writer applying travels.
+ * Queries run as {@link StampedLock} optimistic reads over a {@link DenseGrid} and fall back to a read lock
+ * only when a write happened meanwhile; writers take the write lock.
+ * Like {@link Board}, every method rejects positions outside the board before touching the grid.
+ */
+class ConcurrentBoard {
+    private final DenseGrid grid;
+    private final StampedLock lock = new StampedLock();
+    /**
+     * Creates an empty concurrent board.
+     * @param boardSize size of the board (both width and height)
+     */
+    public ConcurrentBoard(int boardSize) {
+        this.grid = new DenseGrid(boardSize);
+    }
+    private void checkPosition(EntityPosition position) throws InvalidEntityPositionException {
+        int x = position.getX();
+        int y = position.getY();
+        if (x < 1 || x > grid.getSize() || y < 1 || y > grid.getSize()) {
+            throw new InvalidEntityPositionException();
+        }
+    }
+    /**
+     * Adds or replaces an entity at its position on the board.
+     * @param entity entity to add
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public void addEntity(BoardEntity entity) throws InvalidEntityPositionException {
+        checkPosition(entity.getEntityPosition());
+        long stamp = lock.writeLock();
+        try {
+            grid.put(entity);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Removes the entity located at the given position, if any.
+     * @param position board position to clear
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public void removeEntity(EntityPosition position) throws InvalidEntityPositionException {
+        checkPosition(position);
+        long stamp = lock.writeLock();
+        try {
+            grid.clear(position.getX(), position.getY());
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Computes the food value a hypothetical insect would see in the given direction.
+     * @param type     type of the hypothetical insect
+     * @param position position of the hypothetical insect
+     * @param dir      direction to look in
+     * @return sum of visible food values, or 0 if the insect cannot look in that direction
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public int queryVisibleValue(InsectType type, EntityPosition position, Direction dir)
+            throws InvalidEntityPositionException {
+        checkPosition(position);
+        if (!type.looksIn(dir)) {
+            return 0;
+        }
+        int x = position.getX();
+        int y = position.getY();
+        int dx = type.getStride() * dir.getRowStep();
+        int dy = type.getStride() * dir.getColumnStep();
+        long stamp = lock.tryOptimisticRead();
+        int value = grid.visibleValue(x, y, dx, dy);
+        if (lock.validate(stamp)) {
+            return value;
+        }
+        stamp = lock.readLock();
+        try {
+            return grid.visibleValue(x, y, dx, dy);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    /**
+     * Computes the direction a hypothetical insect would choose on the current board.
+     * @param type     type of the hypothetical insect
+     * @param position position of the hypothetical insect
+     * @return direction with the highest visible value
+     * @throws InvalidEntityPositionException if the position lies outside the board
+     */
+    public Direction queryBestDirection(InsectType type, EntityPosition position)
+            throws InvalidEntityPositionException {
+        checkPosition(position);
+        int x = position.getX();
+        int y = position.getY();
+        long stamp = lock.tryOptimisticRead();
+        Direction dir = grid.bestDirection(type, x, y);
+        if (lock.validate(stamp)) {
+            return dir;
+        }
+        stamp = lock.readLock();
+        try {
+            return grid.bestDirection(type, x, y);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    /**
+     * Lets the insect choose its best direction and travel along it as one atomic write.
+     * @param insect insect that travels
+     * @return total value of food collected by the insect
+     * @throws InvalidEntityPositionException if the insect stands outside the board
+     */
+    public int getDirectionSum(Insect insect) throws InvalidEntityPositionException {
+        checkPosition(insect.getEntityPosition());
+        InsectType type = InsectType.of(insect);
+        int x = insect.getEntityPosition().getX();
+        int y = insect.getEntityPosition().getY();
+        long stamp = lock.writeLock();
+        try {
+            Direction dir = grid.bestDirection(type, x, y);
+            int stride = type.getStride();
+            return grid.travel(x, y, stride * dir.getRowStep(), stride * dir.getColumnStep(),
+                    insect.color.ordinal());
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+}
+/**
+ * Board for huge, nearly empty grids that stores only occupied cells.
+ * Every cell is kept in the four lines through it (its row, its column, its diagonal x - y and its
+ * anti-diagonal x + y), each a set of parallel primitive arrays sorted by the coordinate along the line.
+ * Lines are found by their id in an open-addressing hash table, so a ray scan or a travel binary-searches
+ * its line and then touches only the occupied cells on it: the cost is proportional to the number of
+ * entities on the line, not to the size of the board.
+ */
+class SparseGrid implements CellGrid {
+    private static final int ROW = 0;
+    private static final int COLUMN = 1;
+    private static final int DIAGONAL = 2;
+    private static final int ANTI_DIAGONAL = 3;
+    private static final int FAMILIES = 4;
+    private static final int INITIAL_TABLE = 64;
+    private static final int INITIAL_LINE = 4;
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+    private static final int HASH_SHIFT = 16;
+    private static final int NO_KEY = Integer.MIN_VALUE;
+
+    private int size;
+    private int[] keys = new int[INITIAL_TABLE];
+    private Line[] lines = new Line[INITIAL_TABLE];
+    private int lineCount;
+    /**
+     * Coordinates along the line of the food eaten by the current travel.
+     */
+    private int[] eaten = new int[INITIAL_LINE];
+    /**
+     * Creates an empty grid.
+     * @param size size of the board (both width and height)
+     */
+    SparseGrid(int size) {
+        this.size = size;
+        Arrays.fill(keys, NO_KEY);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public void reset(int newSize) {
+        Arrays.fill(keys, NO_KEY);
+        Arrays.fill(lines, null);
+        lineCount = 0;
+        size = newSize;
+    }
+
+    boolean isEmpty(int x, int y) {
+        Line row = line(ROW, x, false);
+        return row == null || !row.contains(y);
+    }
+
+    @Override
+    public void putFood(int x, int y, int value) {
+        set(x, y, FOOD, value);
+    }
+
+    @Override
+    public void putInsect(int x, int y, int colorIndex) {
+        set(x, y, INSECT, colorIndex);
+    }
+
+    private void set(int x, int y, byte kind, int value) {
+        line(ROW, x, true).put(y, kind, value);
+        line(COLUMN, y, true).put(x, kind, value);
+        line(DIAGONAL, x - y, true).put(x, kind, value);
+        line(ANTI_DIAGONAL, x + y, true).put(x, kind, value);
+    }
+
+    @Override
+    public void clear(int x, int y) {
+        Line row = line(ROW, x, false);
+        if (row == null || !row.remove(y)) {
+            return;
+        }
+        line(COLUMN, y, false).remove(x);
+        line(DIAGONAL, x - y, false).remove(x);
+        line(ANTI_DIAGONAL, x + y, false).remove(x);
+    }
+
+    @Override
+    public int visibleValue(int x, int y, int dx, int dy) {
+        Line line = lineOf(x, y, dx, dy);
+        if (line == null) {
+            return 0;
+        }
+        int origin = dx == 0 ? y : x;
+        int step = dx == 0 ? dy : dx;
+        int increment = step > 0 ? 1 : -1;
+        int sum = 0;
+        for (int i = line.firstBeyond(origin, step); i >= 0 && i < line.size; i += increment) {
+            if ((line.coordinates[i] - origin) % step == 0 && line.kinds[i] == FOOD) {
+                sum += line.values[i];
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public int travel(int x, int y, int dx, int dy, int colorIndex) {
+        clear(x, y);
+        Line line = lineOf(x, y, dx, dy);
+        if (line == null) {
+            return 0;
+        }
+        int origin = dx == 0 ? y : x;
+        int step = dx == 0 ? dy : dx;
+        int increment = step > 0 ? 1 : -1;
+        int sum = 0;
+        int eatenCount = 0;
+        for (int i = line.firstBeyond(origin, step); i >= 0 && i < line.size; i += increment) {
+            if ((line.coordinates[i] - origin) % step != 0) {
+                continue;
+            }
+            if (line.kinds[i] == FOOD) {
+                sum += line.values[i];
+                if (eatenCount == eaten.length) {
+                    eaten = Arrays.copyOf(eaten, eatenCount * 2);
+                }
+                eaten[eatenCount++] = line.coordinates[i];
+            } else if (line.values[i] != colorIndex) {
+                break;
+            }
+        }
+        for (int k = 0; k < eatenCount; k++) {
+            int c = eaten[k];
+            if (dx == 0) {
+                clear(x, c);
+            } else if (dy == 0) {
+                clear(c, y);
+            } else if ((dx > 0) == (dy > 0)) {
+                clear(c, c - (x - y));
+            } else {
+                clear(c, (x + y) - c);
+            }
+        }
+        return sum;
+    }
+    /**
+     * Returns the line through (x, y) that contains the ray with the given steps, or null if it is empty.
+     */
+    private Line lineOf(int x, int y, int dx, int dy) {
+        if (dx == 0) {
+            return line(ROW, x, false);
+        }
+        if (dy == 0) {
+            return line(COLUMN, y, false);
+        }
+        if ((dx > 0) == (dy > 0)) {
+            return line(DIAGONAL, x - y, false);
+        }
+        return line(ANTI_DIAGONAL, x + y, false);
+    }
+
+    private Line line(int family, int id, boolean create) {
+        int key = id * FAMILIES + family;
+        int mask = keys.length - 1;
+        int hash = key * HASH_MULTIPLIER;
+        int slot = (hash ^ hash >>> HASH_SHIFT) & mask;
+        while (keys[slot] != NO_KEY) {
+            if (keys[slot] == key) {
+                return lines[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return null;
+        }
+        Line line = new Line();
+        keys[slot] = key;
+        lines[slot] = line;
+        lineCount++;
+        if (lineCount * 2 > keys.length) {
+            grow();
+        }
+        return line;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Line[] oldLines = lines;
+        keys = new int[oldKeys.length * 2];
+        lines = new Line[oldLines.length * 2];
+        Arrays.fill(keys, NO_KEY);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == NO_KEY) {
+                continue;
+            }
+            int hash = oldKeys[i] * HASH_MULTIPLIER;
+            int slot = (hash ^ hash >>> HASH_SHIFT) & mask;
+            while (keys[slot] != NO_KEY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            lines[slot] = oldLines[i];
+        }
+    }
+    /**
+     * Occupied cells of one line sorted by their coordinate along it, with the kind of entity and its value
+     * (food value or color ordinal) in parallel arrays.
+     */
+    private static final class Line {
+        private int[] coordinates = new int[INITIAL_LINE];
+        private byte[] kinds = new byte[INITIAL_LINE];
+        private int[] values = new int[INITIAL_LINE];
+        private int size;
+
+        int firstAtOrAfter(int coordinate) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (coordinates[mid] < coordinate) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+        /**
+         * Returns the index of the first cell after the origin when walking in the direction of the step.
+         */
+        int firstBeyond(int origin, int step) {
+            return step > 0 ? firstAtOrAfter(origin + 1) : firstAtOrAfter(origin) - 1;
+        }
+
+        boolean contains(int coordinate) {
+            int i = firstAtOrAfter(coordinate);
+            return i < size && coordinates[i] == coordinate;
+        }
+
+        void put(int coordinate, byte kind, int value) {
+            int i = firstAtOrAfter(coordinate);
+            if (i == size || coordinates[i] != coordinate) {
+                if (size == coordinates.length) {
+                    coordinates = Arrays.copyOf(coordinates, size * 2);
+                    kinds = Arrays.copyOf(kinds, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                System.arraycopy(coordinates, i, coordinates, i + 1, size - i);
+                System.arraycopy(kinds, i, kinds, i + 1, size - i);
+                System.arraycopy(values, i, values, i + 1, size - i);
+                coordinates[i] = coordinate;
+                size++;
+            }
+            kinds[i] = kind;
+            values[i] = value;
+        }
+
+        boolean remove(int coordinate) {
+            int i = firstAtOrAfter(coordinate);
+            if (i == size || coordinates[i] != coordinate) {
+                return false;
+            }
+            System.arraycopy(coordinates, i + 1, coordinates, i, size - i - 1);
+            System.arraycopy(kinds, i + 1, kinds, i, size - i - 1);
+            System.arraycopy(values, i + 1, values, i, size - i - 1);
+            size--;
+            return true;
+        }
+    }
+}
+/**
+ * Struct-of-arrays store of insects: type, color and packed position of insect i live at index i
+ * of primitive arrays, and {@link #simulate(CellGrid)} runs them through one loop over movement tables
+ * built from the rules of {@link InsectType} instead of calling the virtual methods of {@link Insect} objects.
+ */
+class InsectStore {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int POSITION_BITS = 16;
+    private static final int POSITION_MASK = (1 << POSITION_BITS) - 1;
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final InsectType[] TYPES = InsectType.values();
+    private static final InsectColor[] COLORS = InsectColor.values();
+    /**
+     * Per type ordinal: ordinals of its directions in tie-breaking order, and their row and column steps
+     * multiplied by its stride.
+     */
+    private static final byte[][] TYPE_DIRECTIONS = new byte[TYPES.length][];
+    private static final int[][] TYPE_ROW_STEPS = new int[TYPES.length][];
+    private static final int[][] TYPE_COLUMN_STEPS = new int[TYPES.length][];
+
+    static {
+        for (InsectType type : TYPES) {
+            Direction[] rule = type.sharedDirections();
+            byte[] ordinals = new byte[rule.length];
+            int[] rowSteps = new int[rule.length];
+            int[] columnSteps = new int[rule.length];
+            for (int d = 0; d < rule.length; d++) {
+                ordinals[d] = (byte) rule[d].ordinal();
+                rowSteps[d] = type.getStride() * rule[d].getRowStep();
+                columnSteps[d] = type.getStride() * rule[d].getColumnStep();
+            }
+            TYPE_DIRECTIONS[type.ordinal()] = ordinals;
+            TYPE_ROW_STEPS[type.ordinal()] = rowSteps;
+            TYPE_COLUMN_STEPS[type.ordinal()] = columnSteps;
+        }
+    }
+
+    private int count;
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private byte[] colors = new byte[INITIAL_CAPACITY];
+    private int[] positions = new int[INITIAL_CAPACITY];
+    private byte[] directions = new byte[INITIAL_CAPACITY];
+    private int[] eaten = new int[INITIAL_CAPACITY];
+    /**
+     * Copies the insects of a scenario into a new store, keeping their order.
+     * @param scenario scenario to copy
+     * @return store holding the scenario insects
+     */
+    static InsectStore of(Scenario scenario) {
+        InsectStore store = new InsectStore();
+        for (Insect insect : scenario.getInsects()) {
+            store.add(InsectType.of(insect), insect.color, insect.getEntityPosition().getX(),
+                    insect.getEntityPosition().getY());
+        }
+        return store;
+    }
+    /**
+     * Copies the insects of a scenario into a new store, runs a simulation on it and formats the results.
+     * @param scenario   scenario to run
+     * @param simulation simulation step, e.g. one of the simulate methods on a new grid of the scenario
+     * @return one output line per insect, in input order
+     */
+    static List<String> run(Scenario scenario, Consumer<InsectStore> simulation) {
+        InsectStore store = of(scenario);
+        simulation.accept(store);
+        List<String> results = new ArrayList<>(store.size());
+        for (int i = 0; i < store.size(); i++) {
+            results.add(store.describe(i));
+        }
+        return results;
+    }
+    /**
+     * Appends an insect to the store.
+     * @param type  insect type
+     * @param color insect color
+     * @param x     x coordinate, at most 65535
+     * @param y     y coordinate, at most 65535
+     */
+    void add(InsectType type, InsectColor color, int x, int y) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+            directions = Arrays.copyOf(directions, capacity);
+            eaten = Arrays.copyOf(eaten, capacity);
+        }
+        types[count] = (byte) type.ordinal();
+        colors[count] = (byte) color.ordinal();
+        positions[count] = (x << POSITION_BITS) | y;
+        count++;
+    }
+    /**
+     * Removes all insects, keeping the allocated arrays.
+     */
+    void clear() {
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int getX(int i) {
+        return positions[i] >>> POSITION_BITS;
+    }
+
+    int getY(int i) {
+        return positions[i] & POSITION_MASK;
+    }
+
+    InsectType getType(int i) {
+        return TYPES[types[i]];
+    }
+
+    InsectColor getColor(int i) {
+        return COLORS[colors[i]];
+    }
+
+    Direction getDirection(int i) {
+        return DIRECTIONS[directions[i]];
+    }
+
+    int getEaten(int i) {
+        return eaten[i];
+    }
+    /**
+     * Places every insect of the store into its cell of the grid.
+     * @param grid grid to fill
+     */
+    void placeOn(CellGrid grid) {
+        for (int i = 0; i < count; i++) {
+            grid.putInsect(getX(i), getY(i), colors[i]);
+        }
+    }
+    /**
+     * Lets every insect, in store order, choose its direction on the grid and travel along it,
+     * recording the direction and the collected value.
+     * @param grid grid holding the insects and food; it is updated by the travels
+     */
+    void simulate(CellGrid grid) {
+        for (int i = 0; i < count; i++) {
+            int x = getX(i);
+            int y = getY(i);
+            int[] rowSteps = TYPE_ROW_STEPS[types[i]];
+            int[] columnSteps = TYPE_COLUMN_STEPS[types[i]];
+            int best = 0;
+            int bestValue = grid.visibleValue(x, y, rowSteps[0], columnSteps[0]);
+            for (int d = 1; d < rowSteps.length; d++) {
+                int value = grid.visibleValue(x, y, rowSteps[d], columnSteps[d]);
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = d;
+                }
+            }
+            directions[i] = TYPE_DIRECTIONS[types[i]][best];
+            eaten[i] = grid.travel(x, y, rowSteps[best], columnSteps[best], colors[i]);
+        }
+    }
+    /**
+     * Same as {@link #simulate(CellGrid)}, but directions are chosen by a {@link ParallelRayScanner}.
+     * @param grid    grid holding the insects and food; it is updated by the travels
+     * @param scanner scanner evaluating long rays in parallel
+     */
+    void simulate(DenseGrid grid, ParallelRayScanner scanner) {
+        for (int i = 0; i < count; i++) {
+            int x = getX(i);
+            int y = getY(i);
+            InsectType type = getType(i);
+            Direction dir = scanner.bestDirection(grid, type, x, y);
+            directions[i] = (byte) dir.ordinal();
+            eaten[i] = grid.travel(x, y, type.getStride() * dir.getRowStep(), type.getStride() * dir.getColumnStep(),
+                    colors[i]);
+        }
+    }
+    /**
+     * Same as {@link #simulate(CellGrid)}, but every insect runs the kernel that {@link MovementKernels}
+     * generated for its type instead of the table loop.
+     * @param grid grid holding the insects and food; it is updated by the travels
+     */
+    void simulateCompiled(DenseGrid grid) {
+        for (int i = 0; i < count; i++) {
+            long result = MovementKernels.run(types[i], grid, getX(i), getY(i), colors[i]);
+            directions[i] = (byte) MovementKernels.directionOf(result);
+            eaten[i] = MovementKernels.eatenOf(result);
+        }
+    }
+    /**
+     * Formats the result of insect i the same way as output.txt.
+     * @param i index of the insect
+     * @return output line for the insect
+     */
+    String describe(int i) {
+        String colorName = getColor(i).name();
+        return colorName.charAt(0) + colorName.substring(1).toLowerCase() + " "
+                + getType(i).getTextRepresentation() + " " + getDirection(i).getTextRepresentation() + " " + eaten[i];
+    }
+}
+/**
+ * Tokens of scenario input as {@link Scenario} validates them.
+ */
+interface ScenarioSource {
+    /**
+     * Reads the next token as an integer.
+     * @return parsed value
+     * @throws IOException if the input cannot be read
+     */
+    int nextInt() throws IOException;
+    /**
+     * Reads the next token and looks it up in a list of known words.
+     * @param words known words as ASCII bytes
+     * @return index of the matching word, or -1 if the token is not one of them
+     * @throws IOException if the input cannot be read
+     */
+    int nextWord(byte[][] words) throws IOException;
+    /**
+     * Adapts a {@link Scanner}, which keeps its number syntax and its exceptions.
+     * @param sc scanner to read from
+     * @return source reading from the scanner
+     */
+    static ScenarioSource of(Scanner sc) {
+        return new ScenarioSource() {
+            @Override
+            public int nextInt() {
+                return sc.nextInt();
+            }
+
+            @Override
+            public int nextWord(byte[][] words) {
+                String token = sc.next();
+                for (int w = 0; w < words.length; w++) {
+                    if (token.equals(new String(words[w], StandardCharsets.US_ASCII))) {
+                        return w;
+                    }
+                }
+                return -1;
+            }
+        };
+    }
+}
+/**
+ * Receiver of the board size and the entities of a scenario, in input order, as {@link Scenario} validates them.
+ * Insect types and colors are given by ordinal; the sink answers the duplicate and occupancy checks.
+ */
+interface ScenarioSink {
+    /**
+     * Starts a scenario on an empty board.
+     * @param size size of the board
+     */
+    void begin(int size);
+
+    boolean hasInsect(int type, int color);
+
+    boolean isOccupied(int x, int y);
+
+    void addInsect(int type, int color, int x, int y);
+
+    void addFood(int value, int x, int y);
+}
+/**
+ * Splits scenario input into whitespace separated tokens without creating Strings:
+ * bytes are read into a reusable buffer and numbers and known words are decoded in place.
+ */
+class ScenarioTokenizer implements ScenarioSource {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int INITIAL_TOKEN_SIZE = 32;
+    private static final int RADIX = 10;
+    private static final int HEADER_TOKENS = 3;
+    private static final int INSECT_TOKENS = 4;
+    private static final int FOOD_TOKENS = 3;
+    private static final int BYTE_MASK = 0xff;
+    /**
+     * Header number standing for a token that is not a number.
+     */
+    static final long MALFORMED = Long.MIN_VALUE;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private InputStream in;
+    private byte[] token = new byte[INITIAL_TOKEN_SIZE];
+    private int tokenLength;
+    private long tokenCount;
+
+    ScenarioTokenizer(InputStream in) {
+        this.in = in;
+    }
+    /**
+     * Starts reading from another stream, dropping any buffered input.
+     * @param newIn stream to read from
+     */
+    void reset(InputStream newIn) {
+        this.in = newIn;
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        // unsigned, so that bytes of non-ASCII text are not mistaken for the end of the input (-1);
+        // none of them is whitespace, so they end up inside a token and fail its validation
+        return buffer[position++] & BYTE_MASK;
+    }
+
+    private int peek() throws IOException {
+        int c = read();
+        if (c >= 0) {
+            position--;
+        }
+        return c;
+    }
+    /**
+     * Skips whitespace and reports whether another token follows.
+     * @return true if the input has another token
+     * @throws IOException if the stream cannot be read
+     */
+    boolean hasNext() throws IOException {
+        int c = peek();
+        while (c >= 0 && Character.isWhitespace(c)) {
+            position++;
+            c = peek();
+        }
+        return c >= 0;
+    }
+    /**
+     * Reads the next token into the internal token buffer.
+     * @throws IOException if the stream cannot be read
+     */
+    void next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        tokenLength = 0;
+        tokenCount++;
+        int c = read();
+        while (c >= 0 && !Character.isWhitespace(c)) {
+            if (tokenLength == token.length) {
+                token = Arrays.copyOf(token, token.length * 2);
+            }
+            token[tokenLength++] = (byte) c;
+            c = read();
+        }
+    }
+    /**
+     * Returns the number of tokens read so far.
+     * @return count of tokens read since creation
+     */
+    long getTokenCount() {
+        return tokenCount;
+    }
+    /**
+     * Computes the token count at which a scenario ends from the counts declared in its header.
+     * @param start token count before the board size of the scenario
+     * @param n     declared number of insects
+     * @param m     declared number of food points
+     * @return token count after the last token of the scenario, or -1 if a count is negative or {@link #MALFORMED}
+     */
+    static long scenarioEnd(long start, long n, long m) {
+        if (n < 0 || m < 0) {
+            return -1;
+        }
+        return start + HEADER_TOKENS + INSECT_TOKENS * n + FOOD_TOKENS * m;
+    }
+    /**
+     * Skips tokens until the given number of tokens has been read in total, or the input ends.
+     * @param count total token count to reach
+     * @throws IOException if the stream cannot be read
+     */
+    void skipTo(long count) throws IOException {
+        while (tokenCount < count && hasNext()) {
+            next();
+        }
+    }
+    /**
+     * Reads the next token as a String.
+     * @return text of the token, one char per byte
+     * @throws IOException if the stream cannot be read
+     */
+    String nextToken() throws IOException {
+        next();
+        return tokenText();
+    }
+    /**
+     * Returns the token read last, e.g. by {@link #nextHeaderNumber()}, as a String.
+     * @return text of the token, one char per byte, so that {@link StandardCharsets#ISO_8859_1} gives back
+     *         its bytes
+     */
+    String tokenText() {
+        return new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1);
+    }
+    /**
+     * Reads the next token as a decimal integer.
+     * @return parsed value
+     * @throws IOException if the stream cannot be read
+     */
+    @Override
+    public int nextInt() throws IOException {
+        next();
+        int i = 0;
+        boolean negative = token[0] == '-';
+        if (negative || token[0] == '+') {
+            i++;
+        }
+        if (i == tokenLength) {
+            throw new InputMismatchException();
+        }
+        long value = 0;
+        for (; i < tokenLength; i++) {
+            int digit = token[i] - '0';
+            if (digit < 0 || digit >= RADIX) {
+                throw new InputMismatchException();
+            }
+            value = value * RADIX + digit;
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new InputMismatchException();
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new InputMismatchException();
+        }
+        return (int) value;
+    }
+    /**
+     * Reads the next token as a header number, so that the header can be read in full even if one of its
+     * numbers is malformed.
+     * @return parsed value, or {@link #MALFORMED} if the token is not a decimal integer
+     * @throws IOException if the stream cannot be read
+     */
+    long nextHeaderNumber() throws IOException {
+        try {
+            return nextInt();
+        } catch (InputMismatchException e) {
+            return MALFORMED;
+        }
+    }
+    /**
+     * Reads the next token and looks it up in a list of known words.
+     * @param words known words as ASCII bytes
+     * @return index of the matching word, or -1 if the token is not one of them
+     * @throws IOException if the stream cannot be read
+     */
+    @Override
+    public int nextWord(byte[][] words) throws IOException {
+        next();
+        for (int w = 0; w < words.length; w++) {
+            if (Arrays.equals(token, 0, tokenLength, words[w], 0, words[w].length)) {
+                return w;
+            }
+        }
+        return -1;
+    }
+}
+/**
+ * Writes output lines into a reusable byte buffer, formatting numbers and names without creating Strings.
+ */
+class ResultWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_LINE = 128;
+    private static final int RADIX = 10;
+    static final byte[][] COLOR_NAMES = new byte[InsectColor.values().length][];
+    static final byte[][] TYPE_NAMES = new byte[InsectType.values().length][];
+    private static final byte[][] DIRECTION_NAMES = new byte[Direction.values().length][];
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (InsectColor color : InsectColor.values()) {
+            String name = color.name().charAt(0) + color.name().substring(1).toLowerCase();
+            COLOR_NAMES[color.ordinal()] = name.getBytes(StandardCharsets.US_ASCII);
+        }
+        for (InsectType type : InsectType.values()) {
+            TYPE_NAMES[type.ordinal()] = type.getTextRepresentation().getBytes(StandardCharsets.US_ASCII);
+        }
+        for (Direction dir : Direction.values()) {
+            DIRECTION_NAMES[dir.ordinal()] = dir.getTextRepresentation().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[RADIX + 1];
+    private int count;
+    private OutputStream out;
+
+    ResultWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void reset(OutputStream newOut) {
+        this.out = newOut;
+        this.count = 0;
+    }
+    /**
+     * Writes one result line, e.g. "Red Ant North 5".
+     * @param color insect color
+     * @param type  insect type
+     * @param dir   chosen direction
+     * @param eaten collected value
+     * @throws IOException if the stream cannot be written
+     */
+    void writeResult(InsectColor color, InsectType type, Direction dir, int eaten) throws IOException {
+        ensureRoom();
+        append(COLOR_NAMES[color.ordinal()]);
+        buffer[count++] = ' ';
+        append(TYPE_NAMES[type.ordinal()]);
+        buffer[count++] = ' ';
+        append(DIRECTION_NAMES[dir.ordinal()]);
+        buffer[count++] = ' ';
+        appendInt(eaten);
+        append(LINE_SEPARATOR);
+    }
+    /**
+     * Writes an ASCII line such as an error message.
+     * @param text line without separator
+     * @throws IOException if the stream cannot be written
+     */
+    void writeLine(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (count == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) text.charAt(i);
+        }
+        ensureRoom();
+        append(LINE_SEPARATOR);
+    }
+
+    private void ensureRoom() throws IOException {
+        if (count + MAX_LINE > BUFFER_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    private void append(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void appendInt(int value) {
+        long v = value;
+        if (v < 0) {
+            buffer[count++] = '-';
+            v = -v;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + v % RADIX);
+            v /= RADIX;
+        } while (v > 0);
+        while (n > 0) {
+            buffer[count++] = digits[--n];
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+    /**
+     * Writes the buffered bytes and flushes the underlying stream.
+     * @throws IOException if the stream cannot be written
+     */
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+}
+/**
+ * Reusable per-thread state for running many scenarios one after another without allocating:
+ * the grid, insect store, validation flags and I/O buffers are kept between scenarios
+ * and reset in O(entities touched).
+ */
+class BoardArena implements ScenarioSink {
+    private static final ThreadLocal<BoardArena> ARENAS = ThreadLocal.withInitial(BoardArena::new);
+    private static final InsectType[] TYPES = InsectType.values();
+    private static final InsectColor[] COLORS = InsectColor.values();
+
+    private final DenseGrid grid = new DenseGrid(Scenario.MIN_SIZE);
+    private final InsectStore insects = new InsectStore();
+    private final boolean[] typeColorUsed = new boolean[TYPES.length * COLORS.length];
+    /**
+     * Returns the arena of the calling thread.
+     * @return arena owned by the current thread
+     */
+    static BoardArena forCurrentThread() {
+        return ARENAS.get();
+    }
+    /**
+     * Reads one scenario, runs it and writes its output lines, or its error message if it is invalid.
+     * The scenario is read and validated by {@link Scenario#read(ScenarioTokenizer, ScenarioSink)} straight into
+     * the grid and the insect store, which also leaves the tokenizer at the next scenario after an error.
+     * @param in  tokenizer positioned at the board size of the scenario
+     * @param out writer receiving the output lines
+     * @throws IOException if the input cannot be read or the output cannot be written
+     */
+    void process(ScenarioTokenizer in, ResultWriter out) throws IOException {
+        try {
+            Scenario.read(in, this);
+        } catch (Exception e) {
+            out.writeLine(e.getMessage());
+            return;
+        }
+        insects.simulate(grid);
+        for (int i = 0; i < insects.size(); i++) {
+            out.writeResult(insects.getColor(i), insects.getType(i), insects.getDirection(i), insects.getEaten(i));
+        }
+    }
+    /**
+     * Runs an already parsed scenario on the arena grid and writes its output lines.
+     * @param scenario scenario to run
+     * @param out      writer receiving the output lines
+     * @throws IOException if the output cannot be written
+     */
+    void run(Scenario scenario, ResultWriter out) throws IOException {
+        grid.reset(scenario.getSize());
+        insects.clear();
+        for (Insect insect : scenario.getInsects()) {
+            insects.add(InsectType.of(insect), insect.color, insect.getEntityPosition().getX(),
+                    insect.getEntityPosition().getY());
+        }
+        insects.placeOn(grid);
+        for (FoodPoint food : scenario.getFoodPoints()) {
+            grid.put(food);
+        }
+        insects.simulate(grid);
+        for (int i = 0; i < insects.size(); i++) {
+            out.writeResult(insects.getColor(i), insects.getType(i), insects.getDirection(i), insects.getEaten(i));
+        }
+    }
+    @Override
+    public void begin(int size) {
+        grid.reset(size);
+        insects.clear();
+        Arrays.fill(typeColorUsed, false);
+    }
+
+    @Override
+    public boolean hasInsect(int type, int color) {
+        return typeColorUsed[type * COLORS.length + color];
+    }
+
+    @Override
+    public boolean isOccupied(int x, int y) {
+        return !grid.isEmpty(x, y);
+    }
+
+    @Override
+    public void addInsect(int type, int color, int x, int y) {
+        typeColorUsed[type * COLORS.length + color] = true;
+        grid.putInsect(x, y, color);
+        insects.add(TYPES[type], COLORS[color], x, y);
+    }
+
+    @Override
+    public void addFood(int value, int x, int y) {
+        grid.putFood(x, y, value);
+    }
+}
+/**
+ * Runs a concatenation of scenarios in the input.txt format read from one stream, writing the output
+ * of each scenario, in order, to one output stream as soon as it is computed.
+ * Memory does not depend on the length of the input: scenarios are parsed one at a time into the
+ * thread's {@link BoardArena}, which only grows to fit the largest scenario.
+ */
+class ScenarioStream {
+    /**
+     * Processes every scenario of the input.
+     * @param in  concatenated scenarios
+     * @param out stream receiving the concatenated outputs
+     * @return number of scenarios processed
+     * @throws IOException if the input cannot be read or the output cannot be written
+     */
+    static long run(InputStream in, OutputStream out) throws IOException {
+        BoardArena arena = BoardArena.forCurrentThread();
+        ScenarioTokenizer tokenizer = new ScenarioTokenizer(in);
+        ResultWriter writer = new ResultWriter(out);
+        long scenarios = 0;
+        while (tokenizer.hasNext()) {
+            arena.process(tokenizer, writer);
+            writer.flush();
+            scenarios++;
+        }
+        return scenarios;
+    }
+}
+/**
+ * Runs concatenated scenarios like {@link ScenarioStream}, but overlaps the work in three stages:
+ * a parsing thread, one or more simulation workers and a writing thread that restores input order.
+ * Stages are connected by bounded queues, so a slow stage blocks the ones feeding it instead of
+ * letting parsed scenarios or results pile up in memory; the results held back to restore the order are
+ * bounded by the window of an {@link OrderedWriter}, which the parser waits for.
+ * A scenario whose simulation throws gets the failure as its output, and the run fails after writing it.
+ */
+class ScenarioPipeline {
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final Job END = new Job(-1, null, null);
+
+    private final int workers;
+    private final int queueCapacity;
+    /**
+     * Creates a pipeline.
+     * @param workers       number of simulation threads
+     * @param queueCapacity capacity of each queue between stages
+     */
+    ScenarioPipeline(int workers, int queueCapacity) {
+        this.workers = Math.max(1, workers);
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+    /**
+     * Scenario travelling through the pipeline: the parsed scenario or its error message,
+     * and the output bytes once simulated.
+     */
+    private static final class Job {
+        private final long sequence;
+        private final Scenario scenario;
+        private final String error;
+        private byte[] output;
+
+        Job(long sequence, Scenario scenario, String error) {
+            this.sequence = sequence;
+            this.scenario = scenario;
+            this.error = error;
+        }
+    }
+    /**
+     * Processes every scenario of the input; the parsing stage runs in the calling thread.
+     * @param in  concatenated scenarios
+     * @param out stream receiving the concatenated outputs, in input order
+     * @return utilization of every stage
+     * @throws IOException if the input cannot be read, the output cannot be written or a simulation failed
+     */
+    PipelineStats run(InputStream in, OutputStream out) throws IOException {
+        BlockingQueue<Job> parsed = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> simulated = new ArrayBlockingQueue<>(queueCapacity);
+        PipelineStats stats = new PipelineStats(workers);
+        // room for both queues and a job per worker, so that only a slow scenario makes the parser wait
+        OrderedWriter ordered = new OrderedWriter(out, 2 * queueCapacity + workers);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            threads.add(new Thread(() -> simulate(parsed, simulated, ordered, stats), "pipeline-simulate-" + w));
+        }
+        threads.add(new Thread(() -> write(simulated, ordered, stats), "pipeline-write"));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long start = System.nanoTime();
+        long scenarios;
+        try {
+            scenarios = parse(in, parsed, ordered, stats);
+        } finally {
+            for (int w = 0; w < workers; w++) {
+                Uninterruptibly.put(parsed, END);
+            }
+            for (Thread thread : threads) {
+                Uninterruptibly.join(thread);
+            }
+            stats.finish(System.nanoTime() - start);
+        }
+        ordered.finish(scenarios);
+        return stats;
+    }
+
+    private long parse(InputStream in, BlockingQueue<Job> parsed, OrderedWriter ordered, PipelineStats stats)
+            throws IOException {
+        ScenarioTokenizer tokenizer = new ScenarioTokenizer(in);
+        long sequence = 0;
+        while (true) {
+            long busyStart = System.nanoTime();
+            if (!tokenizer.hasNext()) {
+                stats.addParseBusy(System.nanoTime() - busyStart);
+                return sequence;
+            }
+            Job job;
+            try {
+                job = new Job(sequence, Scenario.read(tokenizer), null);
+            } catch (Exception e) {
+                job = new Job(sequence, null, e.getMessage());
+            }
+            stats.addParseBusy(System.nanoTime() - busyStart);
+            ordered.admit(sequence);
+            try {
+                parsed.put(job);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            sequence++;
+        }
+    }
+
+    private void simulate(BlockingQueue<Job> parsed, BlockingQueue<Job> simulated, OrderedWriter ordered,
+                          PipelineStats stats) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResultWriter writer = new ResultWriter(bytes);
+        try {
+            for (Job job = parsed.take(); job != END; job = parsed.take()) {
+                long busyStart = System.nanoTime();
+                bytes.reset();
+                writer.reset(bytes);
+                try {
+                    if (job.error != null) {
+                        writer.writeLine(job.error);
+                    } else {
+                        BoardArena.forCurrentThread().run(job.scenario, writer);
+                    }
+                    writer.flush();
+                    job.output = bytes.toByteArray();
+                } catch (RuntimeException | IOException e) {
+                    job.output = ordered.failed(job.sequence, e);
+                }
+                stats.addSimulateBusy(System.nanoTime() - busyStart);
+                simulated.put(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Uninterruptibly.put(simulated, END);
+        }
+    }
+    /**
+     * Hands the results to the ordered writer until every worker has finished.
+     */
+    private void write(BlockingQueue<Job> simulated, OrderedWriter ordered, PipelineStats stats) {
+        int finishedWorkers = 0;
+        try {
+            while (finishedWorkers < workers) {
+                Job job = simulated.take();
+                if (job == END) {
+                    finishedWorkers++;
+                    continue;
+                }
+                long busyStart = System.nanoTime();
+                stats.addWritten(ordered.accept(job.sequence, job.output));
+                stats.addWriteBusy(System.nanoTime() - busyStart);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+/**
+ * Writes the outputs of scenarios in input order when several workers finish them out of order.
+ * Scenarios are admitted in input order by {@link #admit}, which blocks while a scenario would be a whole
+ * window or more ahead of the next output to write; so the outputs held back for reordering, together with
+ * the scenarios queued or running before them, never exceed the window.
+ * A single writer thread hands every finished output to {@link #accept}. After a write failure outputs are
+ * still accepted and dropped, so that the other threads can finish; {@link #finish} then reports it.
+ */
+final class OrderedWriter {
+    private final OutputStream out;
+    /**
+     * Outputs held back, at their sequence modulo the window; used by the writer thread only.
+     */
+    private final byte[][] held;
+    private final AtomicReference<String> simulationFailure = new AtomicReference<>();
+    private long nextToWrite;
+    private IOException writeFailure;
+    /**
+     * Creates a writer.
+     * @param out    stream receiving the outputs
+     * @param window largest distance between an admitted scenario and the next output to write
+     */
+    OrderedWriter(OutputStream out, int window) {
+        this.out = out;
+        this.held = new byte[Math.max(1, window)][];
+    }
+    /**
+     * Waits until the scenario with the given sequence number is less than a window ahead of the output.
+     * @param sequence sequence number of the next scenario, in input order from 0
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    synchronized void admit(long sequence) throws InterruptedIOException {
+        try {
+            while (sequence - nextToWrite >= held.length) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+    /**
+     * Takes the output of an admitted scenario and writes it with every held output that now follows
+     * the written ones without a gap.
+     * @param sequence sequence number of the scenario
+     * @param output   its output bytes
+     * @return number of outputs written
+     */
+    int accept(long sequence, byte[] output) {
+        held[slot(sequence)] = output;
+        long next = nextToWrite;
+        while (held[slot(next)] != null) {
+            if (writeFailure == null) {
+                try {
+                    out.write(held[slot(next)]);
+                } catch (IOException e) {
+                    writeFailure = e;
+                }
+            }
+            held[slot(next)] = null;
+            next++;
+        }
+        int written = (int) (next - nextToWrite);
+        if (written > 0) {
+            if (writeFailure == null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    writeFailure = e;
+                }
+            }
+            synchronized (this) {
+                nextToWrite = next;
+                notifyAll();
+            }
+        }
+        return written;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % held.length);
+    }
+    /**
+     * Records that a worker could not simulate a scenario and returns the output line standing in for it.
+     * @param sequence sequence number of the scenario
+     * @param failure  what the simulation threw
+     * @return output of the scenario
+     */
+    byte[] failed(long sequence, Throwable failure) {
+        String message = "Simulation of scenario " + (sequence + 1) + " failed: " + failure;
+        simulationFailure.compareAndSet(null, message);
+        return (message + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII);
+    }
+    /**
+     * Reports the first failure of the run once the writer thread has finished.
+     * @param scenarios number of scenarios admitted
+     * @throws IOException if an output could not be written, a simulation failed or an output never came
+     */
+    void finish(long scenarios) throws IOException {
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+        if (simulationFailure.get() != null) {
+            throw new IOException(simulationFailure.get());
+        }
+        if (nextToWrite < scenarios) {
+            throw new IOException("No output for scenario " + (nextToWrite + 1));
+        }
+    }
+}
+/**
+ * Blocking calls for the threads coordinating the batch workers, which must not stop waiting for them when
+ * interrupted: the interrupt is remembered and restored once the call has completed.
+ */
+final class Uninterruptibly {
+    private Uninterruptibly() {
+    }
+    /**
+     * Puts an element into a queue, waiting for room.
+     * @param queue   queue to put into
+     * @param element element to put
+     * @param <T>     element type
+     */
+    static <T> void put(BlockingQueue<T> queue, T element) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(element);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * Waits for a thread to die.
+     * @param thread thread to join
+     */
+    static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+/**
+ * Busy time of every stage of a {@link ScenarioPipeline} run, as a share of the wall time of its threads.
+ */
+class PipelineStats {
+    private static final double PERCENT = 100.0;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final int workers;
+    private final LongAdder parseBusy = new LongAdder();
+    private final LongAdder simulateBusy = new LongAdder();
+    private final LongAdder writeBusy = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private long wallNanos;
+
+    PipelineStats(int workers) {
+        this.workers = workers;
+    }
+
+    void addParseBusy(long nanos) {
+        parseBusy.add(nanos);
+    }
+
+    void addSimulateBusy(long nanos) {
+        simulateBusy.add(nanos);
+    }
+
+    void addWriteBusy(long nanos) {
+        writeBusy.add(nanos);
+    }
+
+    void addWritten(int scenarios) {
+        written.add(scenarios);
+    }
+
+    void finish(long nanos) {
+        wallNanos = nanos;
+    }
+
+    long getScenarios() {
+        return written.sum();
+    }
+
+    private double utilization(LongAdder busy, int threads) {
+        return wallNanos == 0 ? 0 : PERCENT * busy.sum() / ((double) wallNanos * threads);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scenarios=%d wall=%.3fs scenarios/s=%.0f parse=%.1f%% simulate(%d)=%.1f%% write=%.1f%%",
+                written.sum(), wallNanos / NANOS_PER_SECOND,
+                wallNanos == 0 ? 0 : written.sum() * NANOS_PER_SECOND / wallNanos,
+                utilization(parseBusy, 1), workers, utilization(simulateBusy, workers), utilization(writeBusy, 1));
+    }
+}
+/**
+ * Runs concatenated scenarios so that a few expensive ones do not delay the many cheap ones queued behind them.
+ * <ul>
+ *     <li>After parsing, the work of a scenario is estimated by {@link EngineCostModel#cheapest} from its size,
+ *     insects and food; scenarios estimated below the small-job threshold go to the small-job lane,
+ *     the others to the large-job lane.</li>
+ *     <li>Each lane is a queue served by its own workers and ordered by submission time plus
+ *     {@code AGING_FACTOR} times the estimated cost: shortest job first among scenarios submitted together,
+ *     while a large job that has waited long enough goes ahead of cheap ones submitted after it.</li>
+ *     <li>At most {@code WINDOW_PER_WORKER} scenarios per worker are admitted beyond the last one written,
+ *     whether queued, running or waiting for their turn to be written; the parser blocks when the window is
+ *     full.</li>
+ *     <li>An idle worker steals from the other lane: large-lane workers take small jobs, and small-lane
+ *     workers take large jobs except the first one, which stays free for small jobs.</li>
+ *     <li>The latency of a scenario runs from its submission after parsing to the end of its simulation
+ *     and is reported per lane.</li>
+ * </ul>
+ * Outputs are written in input order by an {@link OrderedWriter}, and failed simulations are handled, as by
+ * {@link ScenarioPipeline}.
+ */
+class LaneScheduler {
+    static final int DEFAULT_SMALL_JOB_MICROS = 50;
+    static final int SMALL = 0;
+    static final int LARGE = 1;
+    private static final int WINDOW_PER_WORKER = 16;
+    private static final double AGING_FACTOR = 4;
+    private static final double NANOS_PER_MICRO = 1e3;
+    private static final Job END = new Job(-1, null, null, 0, SMALL);
+
+    private final int[] workers;
+    private final double smallJobNanos;
+    private final int window;
+    private final List<PriorityQueue<Job>> queues = new ArrayList<>();
+    private final SimulationEngine engine = new AdaptiveEngine();
+    private boolean closed;
+    /**
+     * Creates a scheduler.
+     * @param smallWorkers   number of small-lane workers, at least 1
+     * @param largeWorkers   number of large-lane workers, at least 1
+     * @param smallJobMicros estimated run time below which a scenario is a small job
+     */
+    LaneScheduler(int smallWorkers, int largeWorkers, int smallJobMicros) {
+        this.workers = new int[] {Math.max(1, smallWorkers), Math.max(1, largeWorkers)};
+        this.smallJobNanos = smallJobMicros * NANOS_PER_MICRO;
+        this.window = WINDOW_PER_WORKER * (workers[SMALL] + workers[LARGE]);
+        Comparator<Job> agedShortestFirst = Comparator.comparingDouble((Job job) -> job.priority)
+                .thenComparingLong(job -> job.sequence);
+        queues.add(new PriorityQueue<>(agedShortestFirst));
+        queues.add(new PriorityQueue<>(agedShortestFirst));
+    }
+    /**
+     * Parsed scenario or its error message, with its estimated cost and lane, and the output once simulated.
+     */
+    private static final class Job {
+        private final long sequence;
+        private final Scenario scenario;
+        private final String error;
+        private final double cost;
+        private final int lane;
+        private long submitted;
+        private double priority;
+        private long latency;
+        private boolean stolen;
+        private byte[] output;
+
+        Job(long sequence, Scenario scenario, String error, double cost, int lane) {
+            this.sequence = sequence;
+            this.scenario = scenario;
+            this.error = error;
+            this.cost = cost;
+            this.lane = lane;
+        }
+    }
+    /**
+     * Processes every scenario of the input; parsing runs in the calling thread.
+     * @param in  concatenated scenarios
+     * @param out stream receiving the concatenated outputs, in input order
+     * @return latency percentiles per lane
+     * @throws IOException if the input cannot be read, the output cannot be written or a simulation failed;
+     *                     the outputs before it are written in any case
+     */
+    LaneStats run(InputStream in, OutputStream out) throws IOException {
+        int workerCount = workers[SMALL] + workers[LARGE];
+        BlockingQueue<Job> simulated = new ArrayBlockingQueue<>(window + workerCount);
+        OrderedWriter ordered = new OrderedWriter(out, window);
+        LaneStats stats = new LaneStats();
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int lane = SMALL; lane <= LARGE; lane++) {
+            for (int w = 0; w < workers[lane]; w++) {
+                int ownLane = lane;
+                boolean maySteal = lane == LARGE || w > 0;
+                workerThreads.add(new Thread(() -> work(ownLane, maySteal, simulated, ordered),
+                        "lane-" + LaneStats.LANE_NAMES[lane] + "-" + w));
+            }
+        }
+        Thread writer = new Thread(() -> write(simulated, workerCount, ordered, stats), "lane-write");
+        for (Thread thread : workerThreads) {
+            thread.start();
+        }
+        writer.start();
+
+        long start = System.nanoTime();
+        long scenarios;
+        try {
+            scenarios = parse(in, ordered);
+        } finally {
+            synchronized (queues) {
+                closed = true;
+                queues.notifyAll();
+            }
+            for (Thread thread : workerThreads) {
+                Uninterruptibly.join(thread);
+            }
+            Uninterruptibly.join(writer);
+            stats.finish(System.nanoTime() - start);
+        }
+        ordered.finish(scenarios);
+        return stats;
+    }
+    /**
+     * Parses and submits every scenario of the input.
+     * @return number of scenarios
+     */
+    private long parse(InputStream in, OrderedWriter ordered) throws IOException {
+        ScenarioTokenizer tokenizer = new ScenarioTokenizer(in);
+        long sequence = 0;
+        while (tokenizer.hasNext()) {
+            Job job;
+            try {
+                Scenario scenario = Scenario.read(tokenizer);
+                double cost = EngineCostModel.cheapest(ScenarioCost.features(scenario));
+                job = new Job(sequence, scenario, null, cost, cost < smallJobNanos ? SMALL : LARGE);
+            } catch (Exception e) {
+                job = new Job(sequence, null, e.getMessage(), 0, SMALL);
+            }
+            ordered.admit(sequence);
+            submit(job);
+            sequence++;
+        }
+        return sequence;
+    }
+
+    private void submit(Job job) {
+        synchronized (queues) {
+            job.submitted = System.nanoTime();
+            job.priority = job.submitted + AGING_FACTOR * job.cost;
+            queues.get(job.lane).add(job);
+            queues.notifyAll();
+        }
+    }
+    /**
+     * Takes the first job of the own lane, or of the other lane if allowed to steal.
+     * @return the job, or null once the input is exhausted and no job is left for this worker
+     */
+    private Job take(int lane, boolean maySteal) throws InterruptedException {
+        synchronized (queues) {
+            while (true) {
+                Job job = queues.get(lane).poll();
+                if (job == null && maySteal) {
+                    job = queues.get(1 - lane).poll();
+                    if (job != null) {
+                        job.stolen = true;
+                    }
+                }
+                if (job != null) {
+                    return job;
+                }
+                if (closed) {
+                    return null;
+                }
+                queues.wait();
+            }
+        }
+    }
+
+    private void work(int lane, boolean maySteal, BlockingQueue<Job> simulated, OrderedWriter ordered) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResultWriter writer = new ResultWriter(bytes);
+        try {
+            for (Job job = take(lane, maySteal); job != null; job = take(lane, maySteal)) {
+                try {
+                    bytes.reset();
+                    writer.reset(bytes);
+                    if (job.error != null) {
+                        writer.writeLine(job.error);
+                    } else {
+                        for (String line : engine.run(job.scenario)) {
+                            writer.writeLine(line);
+                        }
+                    }
+                    writer.flush();
+                    job.output = bytes.toByteArray();
+                } catch (RuntimeException | IOException e) {
+                    job.output = ordered.failed(job.sequence, e);
+                }
+                job.latency = System.nanoTime() - job.submitted;
+                Uninterruptibly.put(simulated, job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Uninterruptibly.put(simulated, END);
+        }
+    }
+    /**
+     * Writes results in input order until every worker has finished.
+     */
+    private void write(BlockingQueue<Job> simulated, int workerCount, OrderedWriter ordered, LaneStats stats) {
+        try {
+            int finished = 0;
+            while (finished < workerCount) {
+                Job job = simulated.take();
+                if (job == END) {
+                    finished++;
+                } else {
+                    stats.record(job.lane, job.latency, job.stolen);
+                    ordered.accept(job.sequence, job.output);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+/**
+ * Latencies of the scenarios of a {@link LaneScheduler} run, per lane they were assigned to.
+ */
+class LaneStats {
+    static final String[] LANE_NAMES = {"small", "large"};
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double MEDIAN = 0.5;
+    private static final double P99 = 0.99;
+    private static final int INITIAL_CAPACITY = 128;
+
+    private final long[][] latencies = new long[LANE_NAMES.length][INITIAL_CAPACITY];
+    private final int[] counts = new int[LANE_NAMES.length];
+    private final int[] stolen = new int[LANE_NAMES.length];
+    private long wallNanos;
+    /**
+     * Records a finished scenario; called by a single thread.
+     * @param lane    lane the scenario was assigned to
+     * @param latency nanoseconds from submission to the end of the simulation
+     * @param steal   whether a worker of the other lane ran it
+     */
+    void record(int lane, long latency, boolean steal) {
+        if (counts[lane] == latencies[lane].length) {
+            latencies[lane] = Arrays.copyOf(latencies[lane], counts[lane] * 2);
+        }
+        latencies[lane][counts[lane]++] = latency;
+        if (steal) {
+            stolen[lane]++;
+        }
+    }
+
+    void finish(long nanos) {
+        wallNanos = nanos;
+    }
+
+    private double percentileMillis(int lane, double share) {
+        if (counts[lane] == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies[lane], counts[lane]);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(share * sorted.length) - 1] / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public String toString() {
+        int total = 0;
+        StringBuilder lanes = new StringBuilder();
+        for (int lane = 0; lane < LANE_NAMES.length; lane++) {
+            total += counts[lane];
+            lanes.append(String.format(" %s: jobs=%d stolen=%d p50=%.3fms p99=%.3fms", LANE_NAMES[lane],
+                    counts[lane], stolen[lane], percentileMillis(lane, MEDIAN), percentileMillis(lane, P99)));
+        }
+        return String.format("scenarios=%d wall=%.3fs scenarios/s=%.0f", total, wallNanos / NANOS_PER_SECOND,
+                wallNanos == 0 ? 0 : total * NANOS_PER_SECOND / wallNanos) + lanes;
+    }
+}
+/**
+ * Opt-in binary trace of every travel made through {@code travelOrthogonally}/{@code travelDiagonally}.
+ * Enabled by starting the JVM with {@code -Dinsects.trace=<file>}; otherwise {@link #ENABLED} is a
+ * constant false and the hooks in the insects cost nothing.
+ * Every event is a fixed 16-byte record (see {@link TraceRing}) put into a lock-free ring buffer;
+ * a background thread drains the ring into the file, and events are dropped and counted
+ * when the ring is full instead of blocking the simulation.
+ */
+final class TravelTrace {
+    static final String PROPERTY = "insects.trace";
+    static final boolean ENABLED = System.getProperty(PROPERTY) != null;
+    static final byte START = 1;
+    static final byte EAT = 2;
+    static final byte STOP = 3;
+    static final byte DROPPED = 4;
+    static final byte REASON_EDGE = 0;
+    static final byte REASON_ENEMY = 1;
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final TraceRing RING = ENABLED ? new TraceRing(RING_CAPACITY) : null;
+
+    static {
+        if (ENABLED) {
+            TraceWriter writer = new TraceWriter(RING, System.getProperty(PROPERTY));
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::finish, "travel-trace-shutdown"));
+        }
+    }
+
+    private TravelTrace() {
+    }
+    /**
+     * Records that an insect left its cell in the given direction.
+     * @param type     insect type
+     * @param color    insect color
+     * @param dir      direction of travel
+     * @param position starting position
+     */
+    static void start(InsectType type, InsectColor color, Direction dir, EntityPosition position) {
+        RING.offer(TraceRing.header(START, type, color, (byte) dir.ordinal(), 0),
+                TraceRing.position(position.getX(), position.getY()));
+    }
+    /**
+     * Records that an insect ate a food point.
+     * @param type  insect type
+     * @param color insect color
+     * @param x     x coordinate of the food point
+     * @param y     y coordinate of the food point
+     * @param value value of the food point
+     */
+    static void eat(InsectType type, InsectColor color, int x, int y, int value) {
+        RING.offer(TraceRing.header(EAT, type, color, (byte) 0, value), TraceRing.position(x, y));
+    }
+    /**
+     * Records where and why an insect stopped: at an insect of another color inside the board,
+     * or at the first cell past the edge.
+     * @param type      insect type
+     * @param color     insect color
+     * @param x         x coordinate of the cell where the travel ended
+     * @param y         y coordinate of the cell where the travel ended
+     * @param boardSize size of the board
+     * @param total     total value collected
+     */
+    static void stop(InsectType type, InsectColor color, int x, int y, int boardSize, int total) {
+        boolean inside = x >= 1 && x <= boardSize && y >= 1 && y <= boardSize;
+        RING.offer(TraceRing.header(STOP, type, color, inside ? REASON_ENEMY : REASON_EDGE, total),
+                TraceRing.position(x, y));
+    }
+}
+/**
+ * Bounded multi-producer, single-consumer ring of trace events, each stored as two longs:
+ * <ul>
+ *     <li>header: kind (bits 0-7), insect type (8-15), color (16-23), direction or stop reason (24-31),
+ *     value (32-63)</li>
+ *     <li>position: x (bits 32-63), y (0-31)</li>
+ * </ul>
+ * Producers claim a slot with a CAS and publish it with an ordered write of its sequence number.
+ */
+final class TraceRing {
+    private static final int TYPE_SHIFT = 8;
+    private static final int COLOR_SHIFT = 16;
+    private static final int ARGUMENT_SHIFT = 24;
+    private static final int VALUE_SHIFT = 32;
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final int capacity;
+    private final int mask;
+    private final long[] data;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long consumed;
+    /**
+     * Creates an empty ring.
+     * @param capacity number of events, a power of two
+     */
+    TraceRing(int capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.data = new long[2 * capacity];
+        this.published = new AtomicLongArray(capacity);
+    }
+
+    static long header(byte kind, InsectType type, InsectColor color, byte argument, int value) {
+        return (kind & BYTE_MASK) | (long) type.ordinal() << TYPE_SHIFT | (long) color.ordinal() << COLOR_SHIFT
+                | (long) (argument & BYTE_MASK) << ARGUMENT_SHIFT | (long) value << VALUE_SHIFT;
+    }
+
+    static long position(int x, int y) {
+        return (long) x << VALUE_SHIFT | (y & LOW_MASK);
+    }
+    /**
+     * Appends an event, or counts it as dropped if the ring is full.
+     * @param header   packed header
+     * @param position packed position
+     * @return true if the event was stored
+     */
+    boolean offer(long header, long position) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        data[2 * slot] = header;
+        data[2 * slot + 1] = position;
+        published.lazySet(slot, sequence + 1);
+        return true;
+    }
+    /**
+     * Writes every published event, in order, as 16 big-endian bytes.
+     * Must only be called by the single consumer thread.
+     * @param out stream receiving the events
+     * @return number of events written
+     * @throws IOException if the stream cannot be written
+     */
+    int drainTo(DataOutputStream out) throws IOException {
+        long sequence = consumed;
+        int count = 0;
+        while (true) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence + 1) {
+                break;
+            }
+            out.writeLong(data[2 * slot]);
+            out.writeLong(data[2 * slot + 1]);
+            sequence++;
+            count++;
+            consumed = sequence;
+        }
+        return count;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    static int kind(long header) {
+        return (int) (header & BYTE_MASK);
+    }
+
+    static int type(long header) {
+        return (int) (header >>> TYPE_SHIFT & BYTE_MASK);
+    }
+
+    static int color(long header) {
+        return (int) (header >>> COLOR_SHIFT & BYTE_MASK);
+    }
+
+    static int argument(long header) {
+        return (int) (header >>> ARGUMENT_SHIFT & BYTE_MASK);
+    }
+
+    static int value(long header) {
+        return (int) (header >>> VALUE_SHIFT);
+    }
+
+    static int x(long position) {
+        return (int) (position >>> VALUE_SHIFT);
+    }
+
+    static int y(long position) {
+        return (int) position;
+    }
+}
+/**
+ * Background thread draining a {@link TraceRing} into a file; on finish it writes the remaining events
+ * followed by a {@link TravelTrace#DROPPED} event carrying the number of dropped events.
+ */
+final class TraceWriter extends Thread {
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    private final TraceRing ring;
+    private final String fileName;
+    private volatile boolean running = true;
+
+    TraceWriter(TraceRing ring, String fileName) {
+        super("travel-trace-writer");
+        setDaemon(true);
+        this.ring = ring;
+        this.fileName = fileName;
+    }
+
+    @Override
+    public void run() {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            while (running) {
+                if (ring.drainTo(out) == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            ring.drainTo(out);
+            long dropped = Math.min(ring.getDropped(), Integer.MAX_VALUE);
+            out.writeLong(TraceRing.header(TravelTrace.DROPPED, InsectType.ANT, InsectColor.RED, (byte) 0,
+                    (int) dropped));
+            out.writeLong(0);
+        } catch (IOException e) {
+            System.err.println("Travel trace stopped: " + e.getMessage());
+        }
+    }
+    /**
+     * Stops the writer after it has written everything recorded so far.
+     */
+    void finish() {
+        running = false;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+/**
+ * Prints a binary travel trace as text, one event per line.
+ * Usage: java TraceDump trace-file
+ */
+class TraceDump {
+    public static void main(String[] args) throws IOException {
+        InsectType[] types = InsectType.values();
+        InsectColor[] colors = InsectColor.values();
+        Direction[] directions = Direction.values();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+            while (in.available() > 0) {
+                long header = in.readLong();
+                long position = in.readLong();
+                String insect = colors[TraceRing.color(header)] + " " + types[TraceRing.type(header)];
+                int x = TraceRing.x(position);
+                int y = TraceRing.y(position);
+                switch (TraceRing.kind(header)) {
+                    case TravelTrace.START:
+                        System.out.printf("START %s at %d,%d heading %s%n", insect, x, y,
+                                directions[TraceRing.argument(header)].getTextRepresentation());
+                        break;
+                    case TravelTrace.EAT:
+                        System.out.printf("EAT   %s at %d,%d value %d%n", insect, x, y, TraceRing.value(header));
+                        break;
+                    case TravelTrace.STOP:
+                        String reason = TraceRing.argument(header) == TravelTrace.REASON_ENEMY ? "enemy" : "edge";
+                        System.out.printf("STOP  %s at %d,%d (%s) total %d%n", insect, x, y, reason,
+                                TraceRing.value(header));
+                        break;
+                    default:
+                        System.out.printf("DROPPED %d events%n", TraceRing.value(header));
+                }
+            }
+        }
+    }
+}
+/**
+ * Way of running a whole scenario; every engine must produce exactly the output lines of
+ * {@link Scenario#run()}.
+ */
+interface SimulationEngine {
+    /**
+     * Returns the name used to select this engine on the command line.
+     * @return engine name
+     */
+    String getName();
+    /**
+     * Runs the scenario.
+     * @param scenario validated scenario
+     * @return one output line per insect, in input order
+     */
+    List<String> run(Scenario scenario);
+    /**
+     * Returns the engine with the given name.
+     * @param name "reference", "dense", "arena", "sparse", "adaptive", "kernel" or "forkjoin"; every engine
+     *             but "adaptive" needs an {@link EngineCostModel} as well
+     * @return matching engine
+     * @throws IllegalArgumentException if there is no engine with that name
+     */
+    static SimulationEngine named(String name) {
+        switch (name) {
+            case "reference":
+                return new ReferenceEngine();
+            case "dense":
+                return new DenseEngine();
+            case "arena":
+                return new ArenaEngine();
+            case "sparse":
+                return new SparseEngine();
+            case "adaptive":
+                return new AdaptiveEngine();
+            case "kernel":
+                return new KernelEngine();
+            case "forkjoin":
+                return new ForkJoinEngine();
+            default:
+                throw new IllegalArgumentException("Unknown engine " + name);
+        }
+    }
+}
+/**
+ * The original engine: polymorphic insects on a {@link Board} backed by {@code HashMap<String, BoardEntity>}.
+ */
+class ReferenceEngine implements SimulationEngine {
+    @Override
+    public String getName() {
+        return "reference";
+    }
+
+    @Override
+    public List<String> run(Scenario scenario) {
+        return scenario.run();
+    }
+}
+/**
+ * Struct-of-arrays kernel of {@link InsectStore} on a freshly allocated {@link DenseGrid}.
+ */
+class DenseEngine implements SimulationEngine {
+    @Override
+    public String getName() {
+        return "dense";
+    }
+
+    @Override
+    public List<String> run(Scenario scenario) {
+        return InsectStore.run(scenario, store -> store.simulate(scenario.createGrid()));
+    }
+}
+/**
+ * Struct-of-arrays kernel on the grid of the calling thread's {@link BoardArena}.
+ */
+class ArenaEngine implements SimulationEngine {
+    @Override
+    public String getName() {
+        return "arena";
+    }
+
+    @Override
+    public List<String> run(Scenario scenario) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResultWriter writer = new ResultWriter(bytes);
+        try {
+            BoardArena.forCurrentThread().run(scenario, writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String text = bytes.toString(StandardCharsets.US_ASCII);
+        return text.isEmpty() ? new ArrayList<>() : Arrays.asList(text.split(System.lineSeparator()));
+    }
+}
+/**
+ * Struct-of-arrays kernel of {@link InsectStore} on a {@link SparseGrid}.
+ */
+class SparseEngine implements SimulationEngine {
+    @Override
+    public String getName() {
+        return "sparse";
+    }
+
+    @Override
+    public List<String> run(Scenario scenario) {
+        return InsectStore.run(scenario, store -> store.simulate(scenario.createSparseGrid()));
+    }
+}
+/**
+ * {@link InsectStore} on a {@link DenseGrid}, with the movement kernels generated by {@link MovementKernels}.
+ */
+class KernelEngine implements SimulationEngine {
+    @Override
+    public String getName() {
+        return "kernel";
+    }
+
+    @Override
+    public List<String> run(Scenario scenario) {
+        return InsectStore.run(scenario, store -> store.simulateCompiled(scenario.createGrid()));
+    }
+}
+/**
+ * {@link InsectStore} on a {@link DenseGrid}, with long rays scanned in parallel by a {@link ParallelRayScanner}
+ * on the common fork-join pool once {@code -Dinsects.forkjoin.threshold} enables it; by default it scans like
+ * {@link DenseEngine}.
+ */
+class ForkJoinEngine implements SimulationEngine {
+    private final ParallelRayScanner scanner;
+
+    ForkJoinEngine() {
+        this(ForkJoinPool.commonPool(), ParallelRayScanner.configuredThreshold());
+    }
+    /**
+     * Creates an engine scanning on the given pool.
+     * @param pool      pool running the ray tasks
+     * @param threshold ray length from which rays are scanned in parallel
+     */
+    ForkJoinEngine(ForkJoinPool pool, int threshold) {
+        scanner = new ParallelRayScanner(pool, threshold);
+    }
+
+    @Override
+    public String getName() {
+        return "forkjoin";
+    }
+
+    @Override
+    public List<String> run(Scenario scenario) {
+        return InsectStore.run(scenario, store -> store.simulate(scenario.createGrid(), scanner));
+    }
+}
+/**
+ * Linear cost model of each engine: the estimated run time of a scenario in nanoseconds is the dot product of
+ * the engine's coefficients with the features of {@link ScenarioCost#features}.
+ * The rows are the output of {@code scripts/fit-cost-model.sh} (3000 scenarios, seed 7) on a single-core
+ * machine, fitted by {@link CostModelFit}; a 0 is a term the fit found no cost for. Run the script again and
+ * paste its rows when an engine changes or on the machine the program is tuned for. The large constant of
+ * the arena engine is real: as an engine it allocates a 64 KiB {@link ResultWriter} per scenario and splits the
+ * written text back into lines, which the batch modes using {@link BoardArena} directly do not.
+ * Every engine of {@link SimulationEngine#named} except the adaptive engine itself has a model; a new engine
+ * needs one here before it can be chosen or forced.
+ */
+enum EngineCostModel {
+    REFERENCE("reference", 0, 42, 56, 0, 12, 0.0044),
+    DENSE("dense", 1400, 15, 2.6, 65, 1.5, 0.38),
+    ARENA("arena", 10000, 27, 3.1, 0, 12, 0.014),
+    SPARSE("sparse", 2300, 340, 0, 200, 53, 0.00015),
+    KERNEL("kernel", 2300, 28, 3.9, 210, 1.4, 0.54),
+    FORKJOIN("forkjoin", 2000, 18, 4.5, 99, 1.3, 0.49);
+
+    private final String engineName;
+    private final double[] nanosPerUnit;
+
+    EngineCostModel(String engineName, double... nanosPerUnit) {
+        this.engineName = engineName;
+        this.nanosPerUnit = nanosPerUnit;
+    }
+
+    String getEngineName() {
+        return engineName;
+    }
+    /**
+     * Estimates the run time of the engine.
+     * @param features features of the scenario
+     * @return estimated time in nanoseconds
+     */
+    double estimate(double[] features) {
+        double nanos = 0;
+        for (int i = 0; i < features.length; i++) {
+            nanos += nanosPerUnit[i] * features[i];
+        }
+        return nanos;
+    }
+    /**
+     * Estimates the run time of a scenario on the engine {@link AdaptiveEngine} would choose.
+     * @param features features of the scenario
+     * @return lowest estimate of all engines, in nanoseconds
+     */
+    static double cheapest(double[] features) {
+        double nanos = Double.MAX_VALUE;
+        for (EngineCostModel model : values()) {
+            nanos = Math.min(nanos, model.estimate(features));
+        }
+        return nanos;
+    }
+}
+/**
+ * Fits the rows of {@link EngineCostModel} from plan logs written by {@link AdaptiveEngine} with
+ * {@code -Dinsects.plan.log}; see {@code scripts/fit-cost-model.sh} for the whole procedure.
+ * The lines of every engine, as named by their {@code chosen=} field, are fitted separately:
+ * <ul>
+ *     <li>the first {@code WARMUP_SHARE} of the lines of an engine are dropped as JIT warm-up;</li>
+ *     <li>the coefficients minimize the sum of squared relative errors to the {@code actual=} run times;</li>
+ *     <li>a coefficient that comes out negative is fixed at 0 and the others are fitted again, most negative
+ *     first, so that no feature makes a scenario cheaper;</li>
+ *     <li>then the {@code TRIM_SHARE} of lines with the largest relative error, mostly garbage collection
+ *     pauses, are dropped and the fit is repeated once.</li>
+ * </ul>
+ */
+final class CostModelFit {
+    private static final double WARMUP_SHARE = 0.25;
+    private static final double TRIM_SHARE = 0.05;
+    private static final double SINGULAR = 1e-12;
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final double PERCENT = 100;
+
+    private CostModelFit() {
+    }
+    /**
+     * Fits every engine found in the logs.
+     * @param logs plan log files
+     * @return one enum row per engine, in order of first appearance, followed by a comment with the number
+     *         of lines used and the mean relative error
+     * @throws IOException if a log cannot be read
+     * @throws IllegalArgumentException if a line lacks a feature, the engine or the run time
+     */
+    static String fit(List<Path> logs) throws IOException {
+        Map<String, List<double[]>> samples = new java.util.LinkedHashMap<>();
+        for (Path log : logs) {
+            for (String line : Files.readAllLines(log, StandardCharsets.US_ASCII)) {
+                if (!line.isBlank()) {
+                    Map<String, String> fields = new HashMap<>();
+                    for (String field : line.trim().split(" ")) {
+                        int eq = field.indexOf('=');
+                        if (eq > 0) {
+                            fields.put(field.substring(0, eq), field.substring(eq + 1));
+                        }
+                    }
+                    samples.computeIfAbsent(field(fields, "chosen", line), engine -> new ArrayList<>())
+                            .add(sample(fields, line));
+                }
+            }
+        }
+        StringBuilder rows = new StringBuilder();
+        for (Map.Entry<String, List<double[]>> engine : samples.entrySet()) {
+            List<double[]> all = engine.getValue();
+            List<double[]> used = new ArrayList<>(all.subList((int) (all.size() * WARMUP_SHARE), all.size()));
+            double[] coefficients = fitNonNegative(used);
+            used.sort(Comparator.comparingDouble(s -> -relativeError(coefficients, s)));
+            used = new ArrayList<>(used.subList((int) (used.size() * TRIM_SHARE), used.size()));
+            double[] trimmed = fitNonNegative(used);
+            double error = 0;
+            for (double[] s : used) {
+                error += relativeError(trimmed, s);
+            }
+            rows.append("    ").append(engine.getKey().toUpperCase()).append("(\"").append(engine.getKey())
+                    .append('"');
+            for (double c : trimmed) {
+                rows.append(", ").append(round(c));
+            }
+            rows.append("),").append(String.format(" // %d lines, mean relative error %.0f%%", used.size(),
+                    used.isEmpty() ? 0 : PERCENT * error / used.size())).append(System.lineSeparator());
+        }
+        return rows.toString();
+    }
+
+    private static String field(Map<String, String> fields, String name, String line) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("No " + name + " in plan log line: " + line);
+        }
+        return value;
+    }
+    /**
+     * Features of a logged scenario followed by its run time in nanoseconds.
+     */
+    private static double[] sample(Map<String, String> fields, String line) {
+        int n = ScenarioCost.FEATURE_NAMES.length;
+        double[] sample = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            sample[i] = Double.parseDouble(field(fields, ScenarioCost.FEATURE_NAMES[i], line));
+        }
+        sample[n] = Double.parseDouble(field(fields, "actual", line));
+        return sample;
+    }
+
+    private static double relativeError(double[] coefficients, double[] sample) {
+        double estimate = 0;
+        for (int i = 0; i < coefficients.length; i++) {
+            estimate += coefficients[i] * sample[i];
+        }
+        return Math.abs(estimate - sample[coefficients.length]) / sample[coefficients.length];
+    }
+    /**
+     * Least squares on the relative error with the coefficients kept at 0 or above.
+     */
+    private static double[] fitNonNegative(List<double[]> samples) {
+        int n = ScenarioCost.FEATURE_NAMES.length;
+        boolean[] free = new boolean[n];
+        Arrays.fill(free, true);
+        while (true) {
+            double[] coefficients = solve(samples, free);
+            int mostNegative = -1;
+            for (int i = 0; i < n; i++) {
+                if (coefficients[i] < 0 && (mostNegative < 0 || coefficients[i] < coefficients[mostNegative])) {
+                    mostNegative = i;
+                }
+            }
+            if (mostNegative < 0) {
+                return coefficients;
+            }
+            free[mostNegative] = false;
+        }
+    }
+    /**
+     * Solves the normal equations of the free features, each sample weighted by 1 / its run time; features
+     * that are not free, or that the samples do not determine, get 0.
+     */
+    private static double[] solve(List<double[]> samples, boolean[] free) {
+        int n = free.length;
+        double[][] system = new double[n][n + 1];
+        for (double[] sample : samples) {
+            double weight = 1 / Math.max(1, sample[n]);
+            for (int i = 0; i < n; i++) {
+                if (free[i]) {
+                    for (int j = 0; j < n; j++) {
+                        if (free[j]) {
+                            system[i][j] += weight * weight * sample[i] * sample[j];
+                        }
+                    }
+                    system[i][n] += weight * weight * sample[i] * sample[n];
+                }
+            }
+        }
+        double[] coefficients = new double[n];
+        boolean[] determined = new boolean[n];
+        int[] pivotRows = new int[n];
+        Arrays.fill(pivotRows, -1);
+        for (int col = 0; col < n; col++) {
+            int pivot = -1;
+            for (int row = 0; row < n; row++) {
+                if (free[row] && !determined[row]
+                        && (pivot < 0 || Math.abs(system[row][col]) > Math.abs(system[pivot][col]))) {
+                    pivot = row;
+                }
+            }
+            if (!free[col] || pivot < 0 || Math.abs(system[pivot][col]) < SINGULAR) {
+                continue;
+            }
+            determined[pivot] = true;
+            pivotRows[col] = pivot;
+            for (int row = 0; row < n; row++) {
+                if (row != pivot && system[row][col] != 0) {
+                    double factor = system[row][col] / system[pivot][col];
+                    for (int k = 0; k <= n; k++) {
+                        system[row][k] -= factor * system[pivot][k];
+                    }
+                }
+            }
+        }
+        for (int col = 0; col < n; col++) {
+            if (pivotRows[col] >= 0) {
+                coefficients[col] = system[pivotRows[col]][n] / system[pivotRows[col]][col];
+            }
+        }
+        return coefficients;
+    }
+
+    private static String round(double value) {
+        if (value == 0) {
+            return "0";
+        }
+        return new java.math.BigDecimal(value).round(new java.math.MathContext(SIGNIFICANT_DIGITS))
+                .stripTrailingZeros().toPlainString();
+    }
+}
+/**
+ * Runs every scenario on the engine with the lowest estimated cost according to {@link EngineCostModel}:
+ * plain scans of a dense grid for small boards, the line-indexed {@link SparseGrid} for large, nearly empty ones.
+ * With {@code -Dinsects.plan.log=<file>} (or {@code -} for standard error) every decision is logged as one line
+ * with the features, the estimate of every engine, the chosen engine and its actual run time, from which the
+ * coefficients can be refitted. {@code -Dinsects.plan.force=<engine>} runs every scenario on that engine while
+ * still logging the estimates, to collect the run times of engines that are seldom chosen.
+ */
+class AdaptiveEngine implements SimulationEngine {
+    static final String LOG_PROPERTY = "insects.plan.log";
+    static final String FORCE_PROPERTY = "insects.plan.force";
+    private static final EngineCostModel[] MODELS = EngineCostModel.values();
+    private static final PrintStream LOG = openLog(System.getProperty(LOG_PROPERTY));
+
+    private final SimulationEngine[] engines = new SimulationEngine[MODELS.length];
+    private final int forced;
+
+    AdaptiveEngine() {
+        String forcedName = System.getProperty(FORCE_PROPERTY);
+        int forcedIndex = -1;
+        for (int e = 0; e < MODELS.length; e++) {
+            engines[e] = SimulationEngine.named(MODELS[e].getEngineName());
+            if (MODELS[e].getEngineName().equals(forcedName)) {
+                forcedIndex = e;
+            }
+        }
+        if (forcedName != null && forcedIndex < 0) {
+            throw new IllegalArgumentException("Unknown engine " + forcedName);
+        }
+        forced = forcedIndex;
+    }
+
+    private static PrintStream openLog(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return "-".equals(name) ? System.err : new PrintStream(new FileOutputStream(name), true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "adaptive";
+    }
+
+    @Override
+    public List<String> run(Scenario scenario) {
+        double[] features = ScenarioCost.features(scenario);
+        double[] estimates = new double[MODELS.length];
+        int chosen = 0;
+        for (int e = 0; e < MODELS.length; e++) {
+            estimates[e] = MODELS[e].estimate(features);
+            if (estimates[e] < estimates[chosen]) {
+                chosen = e;
+            }
+        }
+        if (forced >= 0) {
+            chosen = forced;
+        }
+        long start = System.nanoTime();
+        List<String> results = engines[chosen].run(scenario);
+        long elapsed = System.nanoTime() - start;
+        if (LOG != null) {
+            LOG.println(describe(features, estimates, chosen, elapsed));
+        }
+        return results;
+    }
+
+    private static String describe(double[] features, double[] estimates, int chosen, long elapsed) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < features.length; i++) {
+            line.append(ScenarioCost.FEATURE_NAMES[i]).append('=').append(Math.round(features[i])).append(' ');
+        }
+        for (int e = 0; e < MODELS.length; e++) {
+            line.append("estimate.").append(MODELS[e].getEngineName()).append('=').append(Math.round(estimates[e]))
+                    .append(' ');
+        }
+        return line.append("chosen=").append(MODELS[chosen].getEngineName()).append(" actual=").append(elapsed)
+                .toString();
+    }
+}
+/**
+ * Runs every scenario of a concatenated input through the reference engine and a candidate engine,
+ * compares their output line by line and reports mismatches and the measured speedup per scenario.
+ */
+class ShadowRunner {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final SimulationEngine reference = new ReferenceEngine();
+    private final SimulationEngine candidate;
+
+    ShadowRunner(SimulationEngine candidate) {
+        this.candidate = candidate;
+    }
+    /**
+     * Compares both engines on every scenario of the input.
+     * @param in     concatenated scenarios
+     * @param report stream receiving one line per scenario, every mismatching line and a summary
+     * @return number of scenarios whose outputs differ
+     * @throws IOException if the input cannot be read
+     */
+    long run(InputStream in, PrintStream report) throws IOException {
+        ScenarioTokenizer tokenizer = new ScenarioTokenizer(in);
+        long index = 0;
+        long mismatches = 0;
+        long referenceNanos = 0;
+        long candidateNanos = 0;
+        while (tokenizer.hasNext()) {
+            index++;
+            Scenario scenario;
+            try {
+                scenario = Scenario.read(tokenizer);
+            } catch (Exception e) {
+                report.printf("scenario %d: invalid (%s)%n", index, e.getMessage());
+                continue;
+            }
+            TimedRun expected;
+            TimedRun actual;
+            if (index % 2 == 0) {
+                actual = new TimedRun(candidate, scenario);
+                expected = new TimedRun(reference, scenario);
+            } else {
+                expected = new TimedRun(reference, scenario);
+                actual = new TimedRun(candidate, scenario);
+            }
+            referenceNanos += expected.nanos;
+            candidateNanos += actual.nanos;
+
+            boolean same = expected.lines.equals(actual.lines);
+            report.printf("scenario %d: %s reference=%.3fms %s=%.3fms speedup=%.2fx%n", index,
+                    same ? "ok" : "MISMATCH", expected.nanos / NANOS_PER_MILLI, candidate.getName(),
+                    actual.nanos / NANOS_PER_MILLI, speedup(expected.nanos, actual.nanos));
+            if (!same) {
+                mismatches++;
+                reportDifferences(expected.lines, actual.lines, report);
+            }
+        }
+        report.printf("total: %d scenarios, %d mismatches, speedup=%.2fx%n", index, mismatches,
+                speedup(referenceNanos, candidateNanos));
+        return mismatches;
+    }
+
+    private void reportDifferences(List<String> expected, List<String> actual, PrintStream report) {
+        for (int line = 0; line < Math.max(expected.size(), actual.size()); line++) {
+            String want = line < expected.size() ? expected.get(line) : "<none>";
+            String got = line < actual.size() ? actual.get(line) : "<none>";
+            if (!want.equals(got)) {
+                report.printf("  line %d: reference \"%s\" %s \"%s\"%n", line + 1, want, candidate.getName(), got);
+            }
+        }
+    }
+
+    private static double speedup(long referenceNanos, long candidateNanos) {
+        return candidateNanos == 0 ? 0 : (double) referenceNanos / candidateNanos;
+    }
+    /**
+     * Output of one engine on one scenario with its wall time.
+     * The engines alternate which one runs first, so that neither always gets the warmer caches.
+     */
+    private static final class TimedRun {
+        private final List<String> lines;
+        private final long nanos;
+
+        TimedRun(SimulationEngine engine, Scenario scenario) {
+            long start = System.nanoTime();
+            lines = engine.run(scenario);
+            nanos = System.nanoTime() - start;
+        }
+    }
+}
+/**
+ * Static estimates of the work a scenario needs.
+ */
+final class ScenarioCost {
+    static final int CONSTANT = 0;
+    static final int ENTITIES = 1;
+    static final int SCAN_CELLS = 2;
+    static final int RAYS = 3;
+    static final int LINE_ENTITIES = 4;
+    static final int BOARD_CELLS = 5;
+    static final String[] FEATURE_NAMES = {"constant", "entities", "scanCells", "rays", "lineEntities", "boardCells"};
+
+    private ScenarioCost() {
+    }
+    /**
+     * Computes the terms of the linear cost model of {@link EngineCostModel}:
+     * <ul>
+     *     <li>{@code constant} 1</li>
+     *     <li>{@code entities} insects and food points to place</li>
+     *     <li>{@code scanCells} cells on the rays of all insects, see {@link #scanCells}</li>
+     *     <li>{@code rays} rays of all insects, which depends on the mix of insect types</li>
+     *     <li>{@code lineEntities} rays &times; entities / size, the expected number of entities
+     *     on the rays if they are spread evenly</li>
+     *     <li>{@code boardCells} cells of the board, size &times; size</li>
+     * </ul>
+     * @param scenario validated scenario
+     * @return features indexed by the constants of this class
+     */
+    static double[] features(Scenario scenario) {
+        int d = scenario.getSize();
+        long rays = 0;
+        for (Insect insect : scenario.getInsects()) {
+            rays += InsectType.of(insect).sharedDirections().length;
+        }
+        double entities = scenario.getInsects().size() + scenario.getFoodPoints().size();
+        double[] features = new double[FEATURE_NAMES.length];
+        features[CONSTANT] = 1;
+        features[ENTITIES] = entities;
+        features[SCAN_CELLS] = scanCells(scenario);
+        features[RAYS] = rays;
+        features[LINE_ENTITIES] = rays * entities / d;
+        features[BOARD_CELLS] = (double) d * d;
+        return features;
+    }
+    /**
+     * Counts the cells the insects look at while choosing their directions: the sum over all insects
+     * of the lengths of their rays, each ray counted once.
+     * @param scenario validated scenario
+     * @return number of ray cells
+     */
+    static long scanCells(Scenario scenario) {
+        long cells = 0;
+        int d = scenario.getSize();
+        for (Insect insect : scenario.getInsects()) {
+            InsectType type = InsectType.of(insect);
+            int x = insect.getEntityPosition().getX();
+            int y = insect.getEntityPosition().getY();
+            for (Direction dir : type.sharedDirections()) {
+                cells += rayLength(x, y, dir, type.getStride(), d);
+            }
+        }
+        return cells;
+    }
+    /**
+     * Returns the number of cells on the ray from (x, y), not counting (x, y) itself.
+     * @param x      x coordinate of the ray origin
+     * @param y      y coordinate of the ray origin
+     * @param dir    direction of the ray
+     * @param stride step length
+     * @param d      board size
+     * @return number of cells on the board reached by the ray
+     */
+    static int rayLength(int x, int y, Direction dir, int stride, int d) {
+        int steps = Integer.MAX_VALUE;
+        if (dir.getRowStep() < 0) {
+            steps = x - 1;
+        } else if (dir.getRowStep() > 0) {
+            steps = d - x;
+        }
+        if (dir.getColumnStep() < 0) {
+            steps = Math.min(steps, y - 1);
+        } else if (dir.getColumnStep() > 0) {
+            steps = Math.min(steps, d - y);
+        }
+        return steps / stride;
+    }
+}
+/**
+ * Seeded generator of scenarios in the input.txt format. Options, all given as key=value:
+ * <ul>
+ *     <li>{@code seed=N} random seed (default 1)</li>
+ *     <li>{@code size=N} or {@code size=MIN-MAX} board size (default 4-100)</li>
+ *     <li>{@code insects=N} or {@code insects=MIN-MAX} number of insects (default 1-16)</li>
+ *     <li>{@code types=Ant:W,Spider:W,...} and {@code colors=Red:W,...} relative weights of insect types
+ *     and colors; unlisted ones get weight 0 (default all 1)</li>
+ *     <li>{@code food=N} or {@code food=MIN-MAX} number of food points (default 1-200), or
+ *     {@code density=F} to use that share of the cells instead, capped at 200</li>
+ *     <li>{@code values=MIN-MAX} food value range (default 1-100) and {@code skew=S}: values are
+ *     MIN + (MAX - MIN) * u^S for uniform u, so S &gt; 1 favours small values (default 1)</li>
+ *     <li>{@code invalid=P} probability that a scenario breaks exactly one input rule (default 0)</li>
+ * </ul>
+ * Every scenario has as many tokens as its header declares, so invalid ones can be skipped
+ * by the stream readers.
+ */
+class ScenarioGenerator {
+    private static final int DEFAULT_MAX_SIZE = 100;
+    private static final int DEFAULT_MAX_VALUE = 100;
+    private static final int INVALID_KINDS = 8;
+    private static final int KIND_SIZE = 0;
+    private static final int KIND_INSECTS = 1;
+    private static final int KIND_FOOD = 2;
+    private static final int KIND_COLOR = 3;
+    private static final int KIND_TYPE = 4;
+    private static final int KIND_POSITION = 5;
+    private static final int KIND_DUPLICATE = 6;
+    private static final int THIRD_FIELD = 3;
+
+    private final Random random;
+    private int minSize = Scenario.MIN_SIZE;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private int minInsects = Scenario.MIN_NUMBER;
+    private int maxInsects = Scenario.MAX_NUMBER_OF_INSECTS;
+    private int minFood = Scenario.MIN_NUMBER;
+    private int maxFood = Scenario.MAX_NUMBER_OF_FOOD_POINTS;
+    private double density = -1;
+    private int minValue = 1;
+    private int maxValue = DEFAULT_MAX_VALUE;
+    private double skew = 1;
+    private double invalidRate;
+    private final double[] typeWeights = {1, 1, 1, 1};
+    private final double[] colorWeights = {1, 1, 1, 1};
+    /**
+     * Creates a generator from key=value options.
+     * @param options generator options
+     * @throws IllegalArgumentException if an option is unknown or malformed
+     */
+    ScenarioGenerator(List<String> options) {
+        long seed = 1;
+        for (String option : options) {
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value but got " + option);
+            }
+            String key = option.substring(0, eq);
+            String value = option.substring(eq + 1);
+            int[] range;
+            switch (key) {
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "size":
+                    range = parseRange(value);
+                    minSize = range[0];
+                    maxSize = range[1];
+                    break;
+                case "insects":
+                    range = parseRange(value);
+                    minInsects = range[0];
+                    maxInsects = range[1];
+                    break;
+                case "food":
+                    range = parseRange(value);
+                    minFood = range[0];
+                    maxFood = range[1];
+                    break;
+                case "density":
+                    density = Double.parseDouble(value);
+                    break;
+                case "values":
+                    range = parseRange(value);
+                    minValue = range[0];
+                    maxValue = range[1];
+                    break;
+                case "skew":
+                    skew = Double.parseDouble(value);
+                    break;
+                case "invalid":
+                    invalidRate = Double.parseDouble(value);
+                    break;
+                case "types":
+                    parseWeights(value, typeWeights, ResultWriter.TYPE_NAMES);
+                    break;
+                case "colors":
+                    parseWeights(value, colorWeights, ResultWriter.COLOR_NAMES);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown generator option " + key);
+            }
+        }
+        if (Arrays.stream(typeWeights).noneMatch(w -> w > 0) || Arrays.stream(colorWeights).noneMatch(w -> w > 0)) {
+            throw new IllegalArgumentException("At least one insect type and one color need a positive weight");
+        }
+        this.random = new Random(seed);
+    }
+    /**
+     * Parses "N" or "MIN-MAX".
+     */
+    static int[] parseRange(String value) {
+        int dash = value.indexOf('-', 1);
+        if (dash < 0) {
+            int n = Integer.parseInt(value);
+            return new int[] {n, n};
+        }
+        return new int[] {Integer.parseInt(value.substring(0, dash)), Integer.parseInt(value.substring(dash + 1))};
+    }
+
+    private static void parseWeights(String value, double[] weights, byte[][] names) {
+        Arrays.fill(weights, 0);
+        for (String part : value.split(",")) {
+            String[] nameAndWeight = part.split(":");
+            int index = -1;
+            for (int i = 0; i < names.length; i++) {
+                if (new String(names[i], StandardCharsets.US_ASCII).equals(nameAndWeight[0])) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown name " + nameAndWeight[0]);
+            }
+            weights[index] = nameAndWeight.length > 1 ? Double.parseDouble(nameAndWeight[1]) : 1;
+        }
+    }
+
+    private int between(int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+    /**
+     * Generates the next scenario.
+     * @return scenario text ending with a line separator
+     */
+    String next() {
+        int d = between(minSize, maxSize);
+        List<String[]> insects = pickInsects(between(minInsects, maxInsects));
+        int m;
+        if (density >= 0) {
+            m = (int) Math.round(density * d * d);
+        } else {
+            m = between(minFood, maxFood);
+        }
+        m = Math.max(Scenario.MIN_NUMBER, Math.min(m, Scenario.MAX_NUMBER_OF_FOOD_POINTS));
+        m = (int) Math.max(0, Math.min(m, (long) d * d - insects.size()));
+
+        Set<Long> used = new HashSet<>();
+        List<int[]> cells = new ArrayList<>();
+        for (int i = 0; i < insects.size() + m; i++) {
+            long cell;
+            do {
+                cell = (long) between(1, d) << Integer.SIZE | between(1, d);
+            } while (!used.add(cell));
+            cells.add(new int[] {(int) (cell >>> Integer.SIZE), (int) cell});
+        }
+        List<int[]> food = new ArrayList<>();
+        for (int i = 0; i < m; i++) {
+            int[] cell = cells.get(insects.size() + i);
+            double u = Math.pow(random.nextDouble(), skew);
+            food.add(new int[] {minValue + (int) Math.round(u * (maxValue - minValue)), cell[0], cell[1]});
+        }
+        for (int i = 0; i < insects.size(); i++) {
+            insects.get(i)[2] = Integer.toString(cells.get(i)[0]);
+            insects.get(i)[THIRD_FIELD] = Integer.toString(cells.get(i)[1]);
+        }
+        if (random.nextDouble() < invalidRate) {
+            d = breakRule(d, insects, food);
+        }
+        StringBuilder sb = new StringBuilder();
+        String newLine = System.lineSeparator();
+        sb.append(d).append(newLine).append(insects.size()).append(newLine).append(food.size()).append(newLine);
+        for (String[] insect : insects) {
+            sb.append(String.join(" ", insect)).append(newLine);
+        }
+        for (int[] point : food) {
+            sb.append(point[0]).append(' ').append(point[1]).append(' ').append(point[2]).append(newLine);
+        }
+        return sb.toString();
+    }
+    /**
+     * Picks distinct type and color pairs by weight; the result may be shorter than requested when
+     * fewer pairs have a positive weight.
+     */
+    private List<String[]> pickInsects(int n) {
+        List<int[]> pairs = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        for (int t = 0; t < typeWeights.length; t++) {
+            for (int c = 0; c < colorWeights.length; c++) {
+                if (typeWeights[t] * colorWeights[c] > 0) {
+                    pairs.add(new int[] {t, c});
+                    weights.add(typeWeights[t] * colorWeights[c]);
+                }
+            }
+        }
+        List<String[]> insects = new ArrayList<>();
+        while (insects.size() < n && !pairs.isEmpty()) {
+            double total = 0;
+            for (double weight : weights) {
+                total += weight;
+            }
+            double pick = random.nextDouble() * total;
+            int chosen = 0;
+            while (chosen < pairs.size() - 1 && pick >= weights.get(chosen)) {
+                pick -= weights.get(chosen);
+                chosen++;
+            }
+            int[] pair = pairs.remove(chosen);
+            weights.remove(chosen);
+            insects.add(new String[] {new String(ResultWriter.COLOR_NAMES[pair[1]], StandardCharsets.US_ASCII),
+                    new String(ResultWriter.TYPE_NAMES[pair[0]], StandardCharsets.US_ASCII), "", ""});
+        }
+        return insects;
+    }
+    /**
+     * Breaks one randomly chosen input rule, keeping the token count consistent with the header.
+     * @return possibly changed board size
+     */
+    private int breakRule(int d, List<String[]> insects, List<int[]> food) {
+        int kind = random.nextInt(INVALID_KINDS);
+        switch (kind) {
+            case KIND_SIZE:
+                return random.nextBoolean() ? Scenario.MIN_SIZE - 1 : Scenario.MAX_SIZE + 1;
+            case KIND_INSECTS:
+                while (insects.size() <= Scenario.MAX_NUMBER_OF_INSECTS) {
+                    insects.add(insects.get(0).clone());
+                }
+                return d;
+            case KIND_FOOD:
+                while (food.size() <= Scenario.MAX_NUMBER_OF_FOOD_POINTS) {
+                    food.add(food.isEmpty() ? new int[] {1, 1, 1} : food.get(0).clone());
+                }
+                return d;
+            case KIND_COLOR:
+                insects.get(random.nextInt(insects.size()))[0] = "Purple";
+                return d;
+            case KIND_TYPE:
+                insects.get(random.nextInt(insects.size()))[1] = "Beetle";
+                return d;
+            case KIND_POSITION:
+                insects.get(random.nextInt(insects.size()))[2] = Integer.toString(d + 1);
+                return d;
+            case KIND_DUPLICATE:
+                if (insects.size() > 1) {
+                    insects.get(1)[0] = insects.get(0)[0];
+                    insects.get(1)[1] = insects.get(0)[1];
+                    return d;
+                }
+                insects.get(0)[2] = "0";
+                return d;
+            default:
+                if (!food.isEmpty()) {
+                    int[] point = food.get(random.nextInt(food.size()));
+                    point[1] = Integer.parseInt(insects.get(0)[2]);
+                    point[2] = Integer.parseInt(insects.get(0)[THIRD_FIELD]);
+                } else {
+                    insects.get(0)[2] = "0";
+                }
+                return d;
+        }
+    }
+}
+/**
+ * Splits a stream of concatenated scenarios across worker JVMs on the same machine and merges their
+ * outputs back in input order.
+ * <ul>
+ *     <li>Workers are started as {@code java Main --worker} with the coordinator's class path and talk over
+ *     their standard input and output: each request and response is a frame of a long sequence number,
+ *     an int length and that many bytes of scenario text or output.</li>
+ *     <li>Each scenario is estimated to cost board size &times; number of insects, read from its header,
+ *     and is sent to the live worker with the least estimated cost in flight.</li>
+ *     <li>At most {@code WINDOW_PER_WORKER} scenarios per worker are in flight, which bounds the memory used
+ *     for scenarios and for outputs waiting for an earlier one.</li>
+ *     <li>Invalid scenarios, malformed numbers included, are answered by the worker with their error line like
+ *     any other output; the coordinator only reads the header to find where a scenario ends, as
+ *     {@link Scenario#read(ScenarioTokenizer, ScenarioSink)} does.</li>
+ *     <li>A worker whose pipe breaks, that exits, or that has scenarios in flight but has not answered for
+ *     {@code -Dinsects.shard.timeout=<millis>} (default {@code DEFAULT_TIMEOUT_MILLIS}) is restarted, and its
+ *     scenarios in flight are sent again; a scenario that has lost {@code MAX_ATTEMPTS} workers fails the
+ *     run.</li>
+ *     <li>Workers get the {@code insects.*} system properties of the coordinator; the trace and plan log
+ *     files get the worker number appended, so that the workers do not overwrite each other's.</li>
+ * </ul>
+ */
+class ShardCoordinator {
+    static final String TIMEOUT_PROPERTY = "insects.shard.timeout";
+    private static final int WINDOW_PER_WORKER = 16;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 60_000;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+    private static final String PROPERTY_PREFIX = "insects.";
+    private static final Set<String> PER_WORKER_FILES = Set.of(TravelTrace.PROPERTY, AdaptiveEngine.LOG_PROPERTY);
+
+    private final int workerCount;
+    private final long timeoutNanos = Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS) * NANOS_PER_MILLI;
+    private final List<WorkerProcess> workers = new ArrayList<>();
+    private final BlockingQueue<WorkerEvent> events = new LinkedBlockingQueue<>();
+    private int started;
+    private int restarts;
+
+    ShardCoordinator(int workerCount) {
+        this.workerCount = Math.max(1, workerCount);
+    }
+    /**
+     * One scenario in flight.
+     */
+    private static final class Job {
+        private final long sequence;
+        private final byte[] input;
+        private final long cost;
+        private int attempts;
+        private byte[] output;
+
+        Job(long sequence, byte[] input, long cost) {
+            this.sequence = sequence;
+            this.input = input;
+            this.cost = cost;
+        }
+    }
+    /**
+     * Output of a scenario, or the death of a worker when {@code output} is null.
+     */
+    private static final class WorkerEvent {
+        private final WorkerProcess worker;
+        private final long sequence;
+        private final byte[] output;
+
+        WorkerEvent(WorkerProcess worker, long sequence, byte[] output) {
+            this.worker = worker;
+            this.sequence = sequence;
+            this.output = output;
+        }
+    }
+    /**
+     * A running worker JVM with the scenarios sent to it and not yet answered.
+     */
+    private final class WorkerProcess {
+        private final Process process;
+        private final DataOutputStream requests;
+        private final Map<Long, Job> inFlight = new HashMap<>();
+        private long inFlightCost;
+        private long completedCost;
+        /**
+         * Time of the last response, or of the last request sent while nothing was in flight.
+         */
+        private long lastProgress;
+
+        WorkerProcess() throws IOException {
+            List<String> arguments = forwardedProperties(++started);
+            arguments.add("Main");
+            arguments.add("--worker");
+            process = new ProcessBuilder(javaCommand(System.getProperty("java.class.path"),
+                    arguments.toArray(new String[0])))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            Thread reader = new Thread(this::readResponses, "shard-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readResponses() {
+            try (DataInputStream responses = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+                while (true) {
+                    long sequence = responses.readLong();
+                    byte[] output = new byte[responses.readInt()];
+                    responses.readFully(output);
+                    events.add(new WorkerEvent(this, sequence, output));
+                }
+            } catch (IOException e) {
+                events.add(new WorkerEvent(this, -1, null));
+            }
+        }
+
+        void send(Job job) throws IOException {
+            if (inFlight.isEmpty()) {
+                lastProgress = System.nanoTime();
+            }
+            inFlight.put(job.sequence, job);
+            inFlightCost += job.cost;
+            requests.writeLong(job.sequence);
+            requests.writeInt(job.input.length);
+            requests.write(job.input);
+            requests.flush();
+        }
+
+        Job complete(long sequence) {
+            lastProgress = System.nanoTime();
+            Job job = inFlight.remove(sequence);
+            if (job != null) {
+                inFlightCost -= job.cost;
+                completedCost += job.cost;
+            }
+            return job;
+        }
+
+        void close() {
+            try {
+                requests.close();
+                process.waitFor();
+            } catch (IOException e) {
+                process.destroy();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    /**
+     * Returns the options passing the {@code insects.*} system properties of this JVM on to a worker.
+     * @param worker number of the worker, from 1
+     * @return -D options, sorted by property name
+     */
+    private static List<String> forwardedProperties(int worker) {
+        List<String> options = new ArrayList<>();
+        for (String name : new java.util.TreeSet<>(System.getProperties().stringPropertyNames())) {
+            if (name.startsWith(PROPERTY_PREFIX)) {
+                String value = System.getProperty(name);
+                if (PER_WORKER_FILES.contains(name) && !"-".equals(value)) {
+                    value = value + "." + worker;
+                }
+                options.add("-D" + name + "=" + value);
+            }
+        }
+        return options;
+    }
+    /**
+     * Builds the command line starting a class of this program in a new JVM of the same installation.
+     * @param classPath class path of the new JVM
+     * @param arguments JVM options, then the main class and its arguments
+     * @return command line
+     */
+    static List<String> javaCommand(String classPath, String... arguments) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classPath);
+        command.addAll(Arrays.asList(arguments));
+        return command;
+    }
+    /**
+     * Runs every scenario of the input on the workers.
+     * @param in  concatenated scenarios
+     * @param out stream receiving the concatenated outputs, in input order
+     * @return summary with the number of scenarios, restarts and the cost handled by each worker
+     * @throws IOException if the input cannot be read, the output cannot be written or a scenario keeps
+     *                     killing its worker
+     */
+    String run(InputStream in, OutputStream out) throws IOException {
+        for (int w = 0; w < workerCount; w++) {
+            workers.add(new WorkerProcess());
+        }
+        ScenarioTokenizer tokenizer = new ScenarioTokenizer(in);
+        Map<Long, Job> pending = new HashMap<>();
+        long nextToRead = 0;
+        long nextToWrite = 0;
+        boolean exhausted = false;
+        try {
+            while (!exhausted || nextToWrite < nextToRead) {
+                while (!exhausted && nextToRead - nextToWrite < (long) WINDOW_PER_WORKER * workerCount) {
+                    Job job = readJob(tokenizer, nextToRead);
+                    if (job == null) {
+                        exhausted = true;
+                    } else {
+                        pending.put(job.sequence, job);
+                        dispatch(job);
+                        nextToRead++;
+                    }
+                }
+                if (nextToWrite == nextToRead) {
+                    continue;
+                }
+                WorkerEvent event = nextEvent();
+                if (event != null) {
+                    handle(event);
+                } else {
+                    replaceStalled();
+                }
+                Job ready = pending.get(nextToWrite);
+                while (ready != null && ready.output != null) {
+                    out.write(ready.output);
+                    pending.remove(nextToWrite);
+                    nextToWrite++;
+                    ready = pending.get(nextToWrite);
+                }
+                out.flush();
+            }
+        } finally {
+            for (WorkerProcess worker : workers) {
+                worker.close();
+            }
+        }
+        StringBuilder summary = new StringBuilder("scenarios=" + nextToRead + " workers=" + workerCount
+                + " restarts=" + restarts + " cost per worker=");
+        for (WorkerProcess worker : workers) {
+            summary.append(' ').append(worker.completedCost);
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Waits for the next event until the earliest time a busy worker would time out.
+     * @return the event, or null if the time is up
+     */
+    private WorkerEvent nextEvent() throws IOException {
+        long deadline = Long.MAX_VALUE;
+        for (WorkerProcess worker : workers) {
+            if (!worker.inFlight.isEmpty()) {
+                deadline = Math.min(deadline, worker.lastProgress + timeoutNanos);
+            }
+        }
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                return events.take();
+            }
+            return events.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+    /**
+     * Treats every busy worker that has not answered within the timeout as dead.
+     */
+    private void replaceStalled() throws IOException {
+        long now = System.nanoTime();
+        for (WorkerProcess worker : new ArrayList<>(workers)) {
+            if (!worker.inFlight.isEmpty() && now - worker.lastProgress >= timeoutNanos) {
+                System.err.println("Worker " + worker.process.pid() + " did not answer for "
+                        + timeoutNanos / NANOS_PER_MILLI + "ms, restarting it");
+                replace(worker);
+            }
+        }
+    }
+
+    private void handle(WorkerEvent event) throws IOException {
+        if (!workers.contains(event.worker)) {
+            return;
+        }
+        if (event.output != null) {
+            Job job = event.worker.complete(event.sequence);
+            if (job != null) {
+                job.output = event.output;
+            }
+            return;
+        }
+        replace(event.worker);
+    }
+    /**
+     * Restarts a dead worker and sends its scenarios in flight again.
+     */
+    private void replace(WorkerProcess dead) throws IOException {
+        dead.process.destroy();
+        workers.set(workers.indexOf(dead), new WorkerProcess());
+        restarts++;
+        for (Job job : dead.inFlight.values()) {
+            job.attempts++;
+            if (job.attempts >= MAX_ATTEMPTS) {
+                throw new IOException("Scenario " + (job.sequence + 1) + " lost " + MAX_ATTEMPTS + " workers");
+            }
+            dispatch(job);
+        }
+    }
+
+    private void dispatch(Job job) throws IOException {
+        WorkerProcess target = workers.get(0);
+        for (WorkerProcess worker : workers) {
+            if (worker.inFlightCost < target.inFlightCost) {
+                target = worker;
+            }
+        }
+        try {
+            target.send(job);
+        } catch (IOException e) {
+            replace(target);
+        }
+    }
+    /**
+     * Reads the tokens of the next scenario, as delimited by its header, and estimates its cost.
+     * If the header does not tell where the scenario ends, it is sent alone, which the worker answers with
+     * the same error and the same resumption point as a single-process run.
+     * @return the scenario, or null at the end of the input
+     */
+    private static Job readJob(ScenarioTokenizer tokenizer, long sequence) throws IOException {
+        if (!tokenizer.hasNext()) {
+            return null;
+        }
+        long start = tokenizer.getTokenCount();
+        StringBuilder text = new StringBuilder();
+        long[] header = new long[2 + 1];
+        for (int i = 0; i < header.length && tokenizer.hasNext(); i++) {
+            header[i] = tokenizer.nextHeaderNumber();
+            text.append(tokenizer.tokenText()).append(System.lineSeparator());
+        }
+        long end = ScenarioTokenizer.scenarioEnd(start, header[1], header[2]);
+        while (tokenizer.getTokenCount() < end && tokenizer.hasNext()) {
+            text.append(tokenizer.nextToken()).append(System.lineSeparator());
+        }
+        long cost = Math.max(1, header[0]) * Math.max(1, header[1]);
+        return new Job(sequence, text.toString().getBytes(StandardCharsets.ISO_8859_1), cost);
+    }
+    /**
+     * Worker side: answers every request frame with the output of its scenarios until the input ends.
+     * @param in  request frames
+     * @param out response frames
+     * @throws IOException if a pipe breaks
+     */
+    static void serve(InputStream in, OutputStream out) throws IOException {
+        DataInputStream requests = new DataInputStream(new BufferedInputStream(in));
+        DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(out));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        while (true) {
+            long sequence;
+            try {
+                sequence = requests.readLong();
+            } catch (EOFException e) {
+                return;
+            }
+            byte[] input = new byte[requests.readInt()];
+            requests.readFully(input);
+            output.reset();
+            try {
+                ScenarioStream.run(new ByteArrayInputStream(input), output);
+            } catch (RuntimeException e) {
+                // answer instead of dying, so that the scenario is not sent to the next worker
+                output.reset();
+                output.write(("Simulation of scenario " + (sequence + 1) + " failed: " + e
+                        + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+            }
+            responses.writeLong(sequence);
+            responses.writeInt(output.size());
+            output.writeTo(responses);
+            responses.flush();
+        }
+    }
+}
+/**
+ * Recognizes compressed input by its magic number, so that archived scenario sets can be read without
+ * decompressing them to disk first.
+ * gzip input (including several concatenated members) is decompressed while it is read; zstd input is
+ * recognized but rejected, as the JDK has no zstd decoder.
+ */
+final class CompressedInput {
+    private static final int[] GZIP_MAGIC = {0x1f, 0x8b};
+    private static final int[] ZSTD_MAGIC = {0x28, 0xb5, 0x2f, 0xfd};
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CompressedInput() {
+    }
+    /**
+     * Wraps a stream so that it yields the decompressed bytes when it starts with a known magic number.
+     * @param raw stream as stored
+     * @return stream of plain scenario text
+     * @throws IOException if the stream cannot be read or is compressed in an unsupported format
+     */
+    static InputStream open(InputStream raw) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(raw, BUFFER_SIZE);
+        in.mark(ZSTD_MAGIC.length);
+        byte[] head = in.readNBytes(ZSTD_MAGIC.length);
+        in.reset();
+        if (startsWith(head, GZIP_MAGIC)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if (startsWith(head, ZSTD_MAGIC)) {
+            in.close();
+            throw new IOException("zstd-compressed input is not supported, decompress it with zstd -dc"
+                    + " and pipe it to \"-\"");
+        }
+        return in;
+    }
+
+    private static boolean startsWith(byte[] head, int[] magic) {
+        if (head.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[i] & 0xff) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+/**
+ * Startup-optimized reading of input.txt for one-shot runs.
+ * {@link Scanner} initializes the regex engine, locale data and number formats before it returns the first
+ * number, which is a large share of a one-shot run; the input is read with {@link ScenarioTokenizer} instead.
+ * Inputs that the tokenizer could read differently from {@link Scanner} (non-ASCII bytes, numbers it does not
+ * accept, a missing token) are read again with {@link Scanner}, so the output is always the same.
+ * To also skip loading and linking the classes, build a JAR and an AppCDS archive of a one-shot run on the
+ * target machine with {@code scripts/appcds.sh} and start the program with {@code scripts/insects.sh};
+ * {@code bench/StartupBenchmark.java} measures the cold start with and without them.
+ */
+final class FastStartup {
+    private FastStartup() {
+    }
+    /**
+     * Reads and validates the scenario of an input file.
+     * @param fileName name of the input file, possibly compressed
+     * @return validated scenario
+     * @throws Exception the first validation error found, in input order
+     * @throws IOException if the file cannot be read
+     */
+    static Scenario readInput(String fileName) throws Exception, IOException {
+        byte[] bytes;
+        try (InputStream in = CompressedInput.open(new FileInputStream(fileName))) {
+            bytes = in.readAllBytes();
+        }
+        if (isAscii(bytes)) {
+            try {
+                return Scenario.readSingle(new ScenarioTokenizer(new ByteArrayInputStream(bytes)));
+            } catch (NoSuchElementException e) {
+                // InputMismatchException included: let Scanner decide, as it accepts more number formats
+            }
+        }
+        // a channel gets the same decoder as new Scanner(File), which treats malformed input as its end
+        try (Scanner sc = new Scanner(Channels.newChannel(new ByteArrayInputStream(bytes)))) {
+            return Scenario.read(sc);
+        }
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+/**
+ * Scan-and-travel kernels generated from the movement rule of an insect type, its directions in tie-breaking
+ * order and its stride, so that the kernel engine needs nothing of a type but that rule. (The reference
+ * engine still has an {@link Insect} class per type, created and recognized by {@link InsectType#create}
+ * and {@link InsectType#of}, so a new type needs one there as well.)
+ * A kernel is a {@link MethodHandle} tree built once per type: one {@link DenseGrid#visibleValue} call per
+ * direction with the steps bound as constants, folded into the best direction, then a table switch over
+ * {@link DenseGrid#travel} calls with the steps of each direction bound. Once a kernel has been invoked
+ * often, the JVM compiles it with those constants inlined, like a hand-written loop for that type.
+ * A kernel takes (grid, x, y, color ordinal) and returns the eaten value and the direction ordinal packed
+ * into a long; see {@link #eatenOf} and {@link #directionOf}. The kernels of all types sit behind one more
+ * table switch on the type ordinal, held in a static final field so that the JIT treats the whole tree as a
+ * constant and inlines it; an element of a static final array is not a constant, so a handle taken from
+ * one is invoked without inlining.
+ */
+final class MovementKernels {
+    private static final int VALUE_SHIFT = 32;
+    private static final long DIRECTION_MASK = (1L << VALUE_SHIFT) - 1;
+    /**
+     * Positions of the kernel arguments; the steps of visibleValue and travel follow y.
+     */
+    private static final int GRID = 0;
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int COLOR = 3;
+    private static final int STEPS = 3;
+    private static final MethodType KERNEL_TYPE =
+            MethodType.methodType(long.class, DenseGrid.class, int.class, int.class, int.class);
+    private static final MethodType SCAN_TYPE =
+            MethodType.methodType(long.class, DenseGrid.class, int.class, int.class);
+    /**
+     * (type ordinal, grid, x, y, color ordinal)long: the kernel of every type behind a switch on its ordinal.
+     */
+    private static final MethodHandle KERNEL = compileAll();
+
+    private MovementKernels() {
+    }
+    /**
+     * Runs the kernel of an insect type.
+     * @param type  ordinal of the insect type
+     * @param grid  grid holding the insect; it is updated by the travel
+     * @param x     x coordinate of the insect
+     * @param y     y coordinate of the insect
+     * @param color ordinal of the insect color
+     * @return eaten value and direction ordinal, packed
+     */
+    static long run(int type, DenseGrid grid, int x, int y, int color) {
+        try {
+            return (long) KERNEL.invokeExact(type, grid, x, y, color);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int directionOf(long result) {
+        return (int) (result & DIRECTION_MASK);
+    }
+
+    static int eatenOf(long result) {
+        return (int) (result >> VALUE_SHIFT);
+    }
+    private static MethodHandle compileAll() {
+        InsectType[] types = InsectType.values();
+        MethodHandle[] kernels = new MethodHandle[types.length];
+        for (InsectType type : types) {
+            kernels[type.ordinal()] = MethodHandles.dropArguments(
+                    compile(type.sharedDirections(), type.getStride()), 0, int.class);
+        }
+        MethodHandle unknown = MethodHandles.dropArguments(
+                MethodHandles.throwException(long.class, IllegalStateException.class)
+                        .bindTo(new IllegalStateException("Unknown insect type")),
+                0, int.class, DenseGrid.class, int.class, int.class, int.class);
+        return MethodHandles.tableSwitch(unknown, kernels);
+    }
+    /**
+     * Generates the kernel of a movement rule.
+     * @param directions directions in tie-breaking order, at least one
+     * @param stride     number of cells covered by one step
+     * @return kernel of type (DenseGrid, int, int, int)long
+     */
+    static MethodHandle compile(Direction[] directions, int stride) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle visible = lookup.findVirtual(DenseGrid.class, "visibleValue",
+                    MethodType.methodType(int.class, int.class, int.class, int.class, int.class));
+            MethodHandle travel = lookup.findVirtual(DenseGrid.class, "travel",
+                    MethodType.methodType(int.class, int.class, int.class, int.class, int.class, int.class));
+            MethodHandle pack = lookup.findStatic(MovementKernels.class, "pack",
+                    MethodType.methodType(long.class, int.class, int.class));
+            MethodHandle better = lookup.findStatic(MovementKernels.class, "better",
+                    MethodType.methodType(long.class, long.class, int.class, int.class));
+            MethodHandle direction = lookup.findStatic(MovementKernels.class, "directionOf",
+                    MethodType.methodType(int.class, long.class));
+
+            MethodHandle scan = null;
+            for (Direction dir : directions) {
+                MethodHandle ray = MethodHandles.insertArguments(visible, STEPS,
+                        stride * dir.getRowStep(), stride * dir.getColumnStep());
+                if (scan == null) {
+                    scan = MethodHandles.filterReturnValue(ray, MethodHandles.insertArguments(pack, 1, dir.ordinal()));
+                } else {
+                    MethodHandle step = MethodHandles.insertArguments(better, 2, dir.ordinal());
+                    step = MethodHandles.collectArguments(MethodHandles.collectArguments(step, 1, ray), 0, scan);
+                    scan = MethodHandles.permuteArguments(step, SCAN_TYPE, GRID, X, Y, GRID, X, Y);
+                }
+            }
+
+            MethodHandle unknown = MethodHandles.dropArguments(
+                    MethodHandles.throwException(int.class, IllegalStateException.class)
+                            .bindTo(new IllegalStateException("Direction outside the movement rule")),
+                    0, int.class, DenseGrid.class, int.class, int.class, int.class);
+            MethodHandle[] moves = new MethodHandle[Direction.values().length];
+            Arrays.fill(moves, unknown);
+            for (Direction dir : directions) {
+                moves[dir.ordinal()] = MethodHandles.dropArguments(MethodHandles.insertArguments(travel, STEPS,
+                        stride * dir.getRowStep(), stride * dir.getColumnStep()), 0, int.class);
+            }
+            // (direction, grid, x, y, color): travel along the direction and pack the eaten value with it
+            MethodHandle move = MethodHandles.tableSwitch(unknown, moves);
+            MethodHandle finish = MethodHandles.permuteArguments(MethodHandles.collectArguments(pack, 0, move),
+                    MethodType.methodType(long.class, int.class, DenseGrid.class, int.class, int.class, int.class),
+                    0, GRID + 1, X + 1, Y + 1, COLOR + 1, 0);
+            finish = MethodHandles.filterArguments(finish, 0, direction);
+            return MethodHandles.permuteArguments(MethodHandles.collectArguments(finish, 0, scan), KERNEL_TYPE,
+                    GRID, X, Y, GRID, X, Y, COLOR);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long pack(int value, int direction) {
+        return (long) value << VALUE_SHIFT | direction;
+    }
+
+    private static long better(long best, int value, int direction) {
+        return value > eatenOf(best) ? pack(value, direction) : best;
+    }
+}
+/**
+ * Chooses the direction of an insect on a giant {@link DenseGrid} by scanning its rays in parallel.
+ * If the longest ray of the insect has fewer cells than the threshold, the rays are scanned one after another
+ * as usual. Otherwise every direction becomes a fork-join task, and each task splits its ray into halves
+ * until a segment is no longer than the threshold; the segment sums are added up and the best direction is
+ * picked in tie-breaking order as before.
+ * Forking is opt-in: the threshold defaults to {@code Integer.MAX_VALUE}, so every ray is scanned
+ * sequentially, because no parallel gain has been measured yet; the only measurement, on one core, found
+ * every threshold slower than or equal to the sequential scan. Set it with
+ * {@code -Dinsects.forkjoin.threshold=<cells>} after measuring the candidates on the target machine with
+ * {@code scripts/bench.sh ForkJoinRayBenchmark}; below 256 cells forking cost clearly more than the scan.
+ */
+class ParallelRayScanner {
+    static final String THRESHOLD_PROPERTY = "insects.forkjoin.threshold";
+    static final int DEFAULT_THRESHOLD = Integer.MAX_VALUE;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    /**
+     * Creates a scanner.
+     * @param pool      pool running the ray tasks
+     * @param threshold ray length from which rays are scanned in parallel, and longest sequential segment
+     */
+    ParallelRayScanner(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = Math.max(1, threshold);
+    }
+
+    static int configuredThreshold() {
+        return Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+    }
+    /**
+     * Computes the best direction of an insect of the given type standing at (x, y).
+     * @param grid grid to scan; it must not be modified during the call
+     * @param type insect type
+     * @param x    x coordinate of the insect
+     * @param y    y coordinate of the insect
+     * @return direction with the highest visible value, first one on ties
+     */
+    Direction bestDirection(DenseGrid grid, InsectType type, int x, int y) {
+        Direction[] directions = type.sharedDirections();
+        int stride = type.getStride();
+        int longest = 0;
+        for (Direction dir : directions) {
+            longest = Math.max(longest, ScenarioCost.rayLength(x, y, dir, stride, grid.getSize()));
+        }
+        if (longest < threshold) {
+            return grid.bestDirection(type, x, y);
+        }
+        List<RaySegment> rays = new ArrayList<>();
+        for (Direction dir : directions) {
+            rays.add(new RaySegment(grid, threshold, x, y, stride * dir.getRowStep(), stride * dir.getColumnStep(),
+                    1, ScenarioCost.rayLength(x, y, dir, stride, grid.getSize()) + 1));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(rays);
+            }
+        });
+        Direction bestDir = directions[0];
+        int bestValue = rays.get(0).join();
+        for (int d = 1; d < directions.length; d++) {
+            int value = rays.get(d).join();
+            if (value > bestValue) {
+                bestValue = value;
+                bestDir = directions[d];
+            }
+        }
+        return bestDir;
+    }
+    /**
+     * Sum of the food on the steps fromStep (inclusive) to toStep (exclusive) of a ray; split in halves
+     * while longer than the threshold.
+     */
+    private static final class RaySegment extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final DenseGrid grid;
+        private final int threshold;
+        private final int x;
+        private final int y;
+        private final int dx;
+        private final int dy;
+        private final int fromStep;
+        private final int toStep;
+
+        RaySegment(DenseGrid grid, int threshold, int x, int y, int dx, int dy, int fromStep, int toStep) {
+            this.grid = grid;
+            this.threshold = threshold;
+            this.x = x;
+            this.y = y;
+            this.dx = dx;
+            this.dy = dy;
+            this.fromStep = fromStep;
+            this.toStep = toStep;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (toStep - fromStep <= threshold) {
+                return grid.segmentValue(x, y, dx, dy, fromStep, toStep);
+            }
+            int middle = (fromStep + toStep) >>> 1;
+            RaySegment left = new RaySegment(grid, threshold, x, y, dx, dy, fromStep, middle);
+            left.fork();
+            int right = new RaySegment(grid, threshold, x, y, dx, dy, middle, toStep).compute();
+            return left.join() + right;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.Set;
+
+/**
+ * Measures the bytes allocated per scenario when a stream of scenarios is processed through a
+ * {@link BoardArena}, compared with parsing into a {@link Scenario} and running it on a {@link Board}.
+ * Usage: scripts/bench.sh ArenaAllocationBenchmark [scenarios]
+ */
+class ArenaAllocationBenchmark {
+    private static final int DEFAULT_SCENARIOS = 100_000;
+    private static final int REFERENCE_SHARE = 100;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int BOARD_SIZE = 1000;
+    private static final int MAX_FOOD_VALUE = 100;
+    private static final long SEED = 7L;
+
+    public static void main(String[] args) throws IOException {
+        int scenarios = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SCENARIOS;
+        byte[] input = sampleScenario(new Random(SEED));
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        BoardArena arena = BoardArena.forCurrentThread();
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        ScenarioTokenizer tokenizer = new ScenarioTokenizer(in);
+        ResultWriter writer = new ResultWriter(OutputStream.nullOutputStream());
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < scenarios; i++) {
+                in.reset();
+                tokenizer.reset(in);
+                arena.process(tokenizer, writer);
+            }
+            writer.flush();
+            report("arena", round, scenarios, threads.getThreadAllocatedBytes(threadId) - before,
+                    System.nanoTime() - start);
+        }
+        int referenceScenarios = Math.max(1, scenarios / REFERENCE_SHARE);
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < referenceScenarios; i++) {
+                in.reset();
+                try {
+                    Scenario.read(new Scanner(in)).run();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e.getMessage());
+                }
+            }
+            report("scenario", round, referenceScenarios, threads.getThreadAllocatedBytes(threadId) - before,
+                    System.nanoTime() - start);
+        }
+    }
+
+    private static void report(String name, int round, int scenarios, long bytes, long nanos) {
+        String phase = round < WARMUP_ROUNDS ? "warmup" : "steady";
+        System.out.printf("%s %s: %.1f bytes/scenario, %.0f ns/scenario%n", name, phase,
+                (double) bytes / scenarios, (double) nanos / scenarios);
+    }
+    /**
+     * Builds a valid scenario with all sixteen insects and the maximum number of food points.
+     */
+    static byte[] sampleScenario(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int n = InsectType.values().length * InsectColor.values().length;
+        sb.append(BOARD_SIZE).append('\n').append(n).append('\n')
+                .append(Scenario.MAX_NUMBER_OF_FOOD_POINTS).append('\n');
+        Set<String> used = new HashSet<>();
+        for (InsectType type : InsectType.values()) {
+            for (InsectColor color : InsectColor.values()) {
+                String colorName = color.name().charAt(0) + color.name().substring(1).toLowerCase();
+                sb.append(colorName).append(' ').append(type.getTextRepresentation()).append(' ')
+                        .append(freeCell(random, used)).append('\n');
+            }
+        }
+        for (int i = 0; i < Scenario.MAX_NUMBER_OF_FOOD_POINTS; i++) {
+            sb.append(1 + random.nextInt(MAX_FOOD_VALUE)).append(' ').append(freeCell(random, used)).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String freeCell(Random random, Set<String> used) {
+        String cell;
+        do {
+            cell = (1 + random.nextInt(BOARD_SIZE)) + " " + (1 + random.nextInt(BOARD_SIZE));
+        } while (!used.add(cell));
+        return cell;
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures query throughput of {@link ConcurrentBoard} for an increasing number of reader threads
+ * while one writer keeps applying travels.
+ * Usage: scripts/bench.sh ConcurrentBoardBenchmark [boardSize] [millisPerRound] [writerPauseMicros]
+ */
+class ConcurrentBoardBenchmark {
+    private static final int DEFAULT_SIZE = 1000;
+    private static final int DEFAULT_MILLIS = 2000;
+    private static final int DEFAULT_WRITER_PAUSE_MICROS = 100;
+    private static final int FOOD_POINTS = 200;
+    private static final int MAX_FOOD_VALUE = 100;
+    private static final long SEED = 42L;
+    private static final long NANOS_PER_MICRO = 1000L;
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    public static void main(String[] args) throws InterruptedException, InvalidEntityPositionException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        int millis = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MILLIS;
+        long writerPause = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WRITER_PAUSE_MICROS)
+                * NANOS_PER_MICRO;
+        int cores = Runtime.getRuntime().availableProcessors();
+        ConcurrentBoard board = new ConcurrentBoard(size);
+        List<Insect> insects = populate(board, size, new Random(SEED));
+
+        double single = 0;
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            double opsPerSecond = measure(board, size, insects, threads, millis, writerPause);
+            if (threads == 1) {
+                single = opsPerSecond;
+            }
+            System.out.printf("readers=%d queries/s=%.0f scaling=%.2fx%n", threads, opsPerSecond,
+                    opsPerSecond / single);
+        }
+    }
+
+    private static List<Insect> populate(ConcurrentBoard board, int size, Random random)
+            throws InvalidEntityPositionException {
+        List<Insect> insects = new ArrayList<>();
+        for (InsectType type : InsectType.values()) {
+            for (InsectColor color : InsectColor.values()) {
+                Insect insect = type.create(randomPosition(size, random), color);
+                insects.add(insect);
+                board.addEntity(insect);
+            }
+        }
+        for (int i = 0; i < FOOD_POINTS; i++) {
+            board.addEntity(new FoodPoint(randomPosition(size, random), 1 + random.nextInt(MAX_FOOD_VALUE)));
+        }
+        return insects;
+    }
+
+    private static EntityPosition randomPosition(int size, Random random) {
+        return new EntityPosition(1 + random.nextInt(size), 1 + random.nextInt(size));
+    }
+
+    private static double measure(ConcurrentBoard board, int size, List<Insect> insects, int readers,
+                                  int millis, long writerPause) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder queries = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < readers; t++) {
+            Random random = new Random(SEED + t);
+            threads.add(new Thread(() -> {
+                InsectType[] types = InsectType.values();
+                long local = 0;
+                try {
+                    while (running.get()) {
+                        board.queryBestDirection(types[random.nextInt(types.length)], randomPosition(size, random));
+                        local++;
+                    }
+                } catch (InvalidEntityPositionException e) {
+                    throw new IllegalStateException(e.getMessage());
+                }
+                queries.add(local);
+            }));
+        }
+        threads.add(new Thread(() -> {
+            Random random = new Random(SEED - 1);
+            int next = 0;
+            try {
+                while (running.get()) {
+                    Insect insect = insects.get(next);
+                    board.getDirectionSum(insect);
+                    board.addEntity(insect);
+                    board.addEntity(new FoodPoint(randomPosition(size, random),
+                            1 + random.nextInt(MAX_FOOD_VALUE)));
+                    next = (next + 1) % insects.size();
+                    LockSupport.parkNanos(writerPause);
+                }
+            } catch (InvalidEntityPositionException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(millis);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return queries.sum() * (double) MILLIS_PER_SECOND / millis;
+    }
+}
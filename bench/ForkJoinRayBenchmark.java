@@ -0,0 +1,66 @@
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures {@link ParallelRayScanner} against sequential scans on a giant board: the time to choose the
+ * direction of an Ant from random cells, sequentially and with each threshold.
+ * Usage: scripts/bench.sh ForkJoinRayBenchmark [boardSize] [queries] [foodPercent]
+ */
+class ForkJoinRayBenchmark {
+    private static final int DEFAULT_SIZE = 1000;
+    private static final int DEFAULT_QUERIES = 20000;
+    private static final int DEFAULT_FOOD_PERCENT = 1;
+    private static final int PERCENT = 100;
+    private static final int MAX_FOOD_VALUE = 100;
+    private static final int[] THRESHOLDS = {1 << 6, 1 << 7, 1 << 8, 1 << 9};
+    private static final long SEED = 42L;
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+        int foodPercent = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_FOOD_PERCENT;
+        Random random = new Random(SEED);
+        DenseGrid grid = new DenseGrid(size, DenseGrid.Layout.ROW_MAJOR);
+        for (int x = 1; x <= size; x++) {
+            for (int y = 1; y <= size; y++) {
+                if (random.nextInt(PERCENT) < foodPercent) {
+                    grid.putFood(x, y, 1 + random.nextInt(MAX_FOOD_VALUE));
+                }
+            }
+        }
+        System.out.printf("size=%d parallelism=%d%n", size, ForkJoinPool.commonPool().getParallelism());
+        for (int round = 0; round < 2; round++) {
+            boolean report = round > 0;
+            long nanos = measure(grid, queries, null);
+            if (report) {
+                System.out.printf("sequential: %.1fus/query%n", nanos / NANOS_PER_MICRO / queries);
+            }
+            for (int threshold : THRESHOLDS) {
+                nanos = measure(grid, queries, new ParallelRayScanner(ForkJoinPool.commonPool(), threshold));
+                if (report) {
+                    System.out.printf("threshold=%d: %.1fus/query%n", threshold, nanos / NANOS_PER_MICRO / queries);
+                }
+            }
+        }
+    }
+
+    private static long measure(DenseGrid grid, int queries, ParallelRayScanner scanner) {
+        Random random = new Random(SEED);
+        int size = grid.getSize();
+        int checksum = 0;
+        long start = System.nanoTime();
+        for (int q = 0; q < queries; q++) {
+            int x = 1 + random.nextInt(size);
+            int y = 1 + random.nextInt(size);
+            Direction dir = scanner == null ? grid.bestDirection(InsectType.ANT, x, y)
+                    : scanner.bestDirection(grid, InsectType.ANT, x, y);
+            checksum += dir.ordinal();
+        }
+        long nanos = System.nanoTime() - start;
+        if (checksum == -1) {
+            System.out.println(checksum);
+        }
+        return nanos;
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Random;
+
+/**
+ * Compares the cell layouts of {@link DenseGrid} on a large, densely filled board: for every insect type
+ * and layout it measures the time of {@link DenseGrid#bestDirection} from random cells, which walks every ray
+ * the type looks along to the edge of the board.
+ * Usage: scripts/bench.sh GridLayoutBenchmark [boardSize] [millisPerRound] [foodPercent]
+ */
+class GridLayoutBenchmark {
+    private static final int DEFAULT_SIZE = 1000;
+    private static final int DEFAULT_MILLIS = 1000;
+    private static final int DEFAULT_FOOD_PERCENT = 50;
+    private static final int PERCENT = 100;
+    private static final int MAX_FOOD_VALUE = 100;
+    private static final int QUERIES_PER_CHECK = 256;
+    private static final long SEED = 42L;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+        int millis = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MILLIS;
+        int foodPercent = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_FOOD_PERCENT;
+        DenseGrid.Layout[] layouts = DenseGrid.Layout.values();
+        DenseGrid[] grids = new DenseGrid[layouts.length];
+        for (int l = 0; l < layouts.length; l++) {
+            grids[l] = populate(new DenseGrid(size, layouts[l]), foodPercent, new Random(SEED));
+        }
+        for (InsectType type : InsectType.values()) {
+            for (DenseGrid grid : grids) {
+                measure(grid, type, millis);
+            }
+            double baseline = 0;
+            for (DenseGrid grid : grids) {
+                double nanos = measure(grid, type, millis);
+                if (baseline == 0) {
+                    baseline = nanos;
+                }
+                System.out.printf("type=%s layout=%s ns/query=%.1f speedup=%.2fx%n", type,
+                        grid.getLayout().getText(), nanos, baseline / nanos);
+            }
+        }
+    }
+
+    private static DenseGrid populate(DenseGrid grid, int foodPercent, Random random) {
+        int size = grid.getSize();
+        for (int x = 1; x <= size; x++) {
+            for (int y = 1; y <= size; y++) {
+                if (random.nextInt(PERCENT) < foodPercent) {
+                    grid.putFood(x, y, 1 + random.nextInt(MAX_FOOD_VALUE));
+                }
+            }
+        }
+        return grid;
+    }
+    /**
+     * @return average time of one query in nanoseconds
+     */
+    private static double measure(DenseGrid grid, InsectType type, int millis) {
+        Random random = new Random(SEED);
+        int size = grid.getSize();
+        long start = System.nanoTime();
+        long deadline = start + millis * NANOS_PER_MILLI;
+        long queries = 0;
+        int checksum = 0;
+        long now;
+        do {
+            for (int q = 0; q < QUERIES_PER_CHECK; q++) {
+                checksum += grid.bestDirection(type, 1 + random.nextInt(size), 1 + random.nextInt(size)).ordinal();
+            }
+            queries += QUERIES_PER_CHECK;
+            now = System.nanoTime();
+        } while (now < deadline);
+        if (checksum == -1) {
+            System.out.println(checksum);
+        }
+        return (now - start) / (double) queries;
+    }
+}
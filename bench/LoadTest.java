@@ -0,0 +1,124 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives an engine with generated scenarios and reports throughput. Options, all given as key=value:
+ * {@code engine=NAME} (default arena), {@code count=N} scenarios (default 10000), {@code threads=N}
+ * (default 1), plus any {@link ScenarioGenerator} option.
+ * Every thread generates its own scenarios (seed + thread index) up front, then parses and runs them;
+ * only parsing and running are timed.
+ * Usage: scripts/bench.sh LoadTest [key=value...]
+ */
+class LoadTest {
+    private static final int DEFAULT_COUNT = 10_000;
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double BYTES_PER_MEGABYTE = 1 << 20;
+
+    private String engineName = "arena";
+    private int count = DEFAULT_COUNT;
+    private int threads = 1;
+    private long seed = 1;
+    private final List<String> generatorOptions = new ArrayList<>();
+
+    public static void main(String[] args) {
+        System.out.println(new LoadTest(Arrays.asList(args)).run());
+    }
+
+    LoadTest(List<String> options) {
+        for (String option : options) {
+            int eq = option.indexOf('=');
+            String key = eq < 0 ? option : option.substring(0, eq);
+            String value = option.substring(eq + 1);
+            switch (key) {
+                case "engine":
+                    engineName = value;
+                    break;
+                case "count":
+                    count = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    generatorOptions.add(option);
+            }
+        }
+        SimulationEngine.named(engineName);
+    }
+    /**
+     * Runs the load test.
+     * @return one-line report
+     */
+    String run() {
+        List<List<byte[]>> inputs = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<String> options = new ArrayList<>(generatorOptions);
+            options.add("seed=" + (seed + t));
+            ScenarioGenerator generator = new ScenarioGenerator(options);
+            List<byte[]> scenarios = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                scenarios.add(generator.next().getBytes(StandardCharsets.US_ASCII));
+            }
+            inputs.add(scenarios);
+        }
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        LongAdder invalid = new LongAdder();
+        LongAdder cells = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for (List<byte[]> scenarios : inputs) {
+            workers.add(new Thread(() -> {
+                SimulationEngine engine = SimulationEngine.named(engineName);
+                for (byte[] input : scenarios) {
+                    try {
+                        Scenario scenario = Scenario.read(new ScenarioTokenizer(new ByteArrayInputStream(input)));
+                        engine.run(scenario);
+                        cells.add(ScenarioCost.scanCells(scenario));
+                    } catch (Exception e) {
+                        invalid.increment();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        long total = (long) count * threads;
+        return String.format("engine=%s threads=%d scenarios=%d invalid=%d time=%.3fs scenarios/s=%.0f "
+                        + "cells scanned/s=%.0f peak heap=%.1fMB",
+                engineName, threads, total, invalid.sum(), seconds, total / seconds, cells.sum() / seconds,
+                peak / BYTES_PER_MEGABYTE);
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares {@link SparseGrid} with {@link DenseGrid} on boards of growing size holding the usual number of
+ * entities: the time of placing them on a reset grid and running {@link InsectStore#simulate(CellGrid)}.
+ * The dense grid is skipped for boards larger than {@code DENSE_LIMIT}.
+ * Usage: scripts/bench.sh SparseGridBenchmark [scenarios] [rounds]
+ */
+class SparseGridBenchmark {
+    private static final int[] SIZES = {100, 1000, 4000, 16000, 65535};
+    private static final int DENSE_LIMIT = 4000;
+    private static final int DEFAULT_SCENARIOS = 200;
+    private static final int DEFAULT_ROUNDS = 5;
+    private static final int MAX_FOOD_VALUE = 100;
+    private static final int FOOD_FIELDS = 3;
+    private static final long SEED = 42L;
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    public static void main(String[] args) {
+        int scenarios = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SCENARIOS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        for (int size : SIZES) {
+            Random random = new Random(SEED);
+            InsectStore[] stores = new InsectStore[scenarios];
+            int[][] food = new int[scenarios][];
+            for (int s = 0; s < scenarios; s++) {
+                stores[s] = new InsectStore();
+                food[s] = sample(stores[s], size, random);
+            }
+            StringBuilder line = new StringBuilder("size=" + size);
+            CellGrid[] grids = {new SparseGrid(size), size <= DENSE_LIMIT ? new DenseGrid(size) : null};
+            String[] names = {"sparse", "dense"};
+            for (int g = 0; g < grids.length; g++) {
+                if (grids[g] == null) {
+                    line.append(' ').append(names[g]).append("=skipped");
+                    continue;
+                }
+                long best = Long.MAX_VALUE;
+                for (int r = 0; r < rounds; r++) {
+                    best = Math.min(best, measure(grids[g], stores, food));
+                }
+                line.append(String.format(" %s=%.1fus/scenario", names[g], best / NANOS_PER_MICRO / scenarios));
+            }
+            System.out.println(line);
+        }
+    }
+    /**
+     * Fills the store with one insect of every type and color and returns food points as (x, y, value) triples,
+     * all on distinct cells.
+     */
+    private static int[] sample(InsectStore store, int size, Random random) {
+        Set<Long> used = new HashSet<>();
+        for (InsectType type : InsectType.values()) {
+            for (InsectColor color : InsectColor.values()) {
+                long cell = freeCell(used, size, random);
+                store.add(type, color, (int) (cell / size) + 1, (int) (cell % size) + 1);
+            }
+        }
+        int[] food = new int[Scenario.MAX_NUMBER_OF_FOOD_POINTS * FOOD_FIELDS];
+        for (int f = 0; f < food.length; f += FOOD_FIELDS) {
+            long cell = freeCell(used, size, random);
+            food[f] = (int) (cell / size) + 1;
+            food[f + 1] = (int) (cell % size) + 1;
+            food[f + 2] = 1 + random.nextInt(MAX_FOOD_VALUE);
+        }
+        return food;
+    }
+
+    private static long freeCell(Set<Long> used, int size, Random random) {
+        long cell;
+        do {
+            cell = (long) random.nextInt(size) * size + random.nextInt(size);
+        } while (!used.add(cell));
+        return cell;
+    }
+
+    private static long measure(CellGrid grid, InsectStore[] stores, int[][] food) {
+        long start = System.nanoTime();
+        for (int s = 0; s < stores.length; s++) {
+            grid.reset(grid.getSize());
+            stores[s].placeOn(grid);
+            for (int f = 0; f < food[s].length; f += FOOD_FIELDS) {
+                grid.putFood(food[s][f], food[s][f + 1], food[s][f + 2]);
+            }
+            stores[s].simulate(grid);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures the cold-start time to output of one-shot runs on a small input.txt, each in a new JVM.
+ * Before measuring, a training run of {@link Main} writes an AppCDS archive of the classes it loaded
+ * ({@code -XX:ArchiveClassesAtExit}). Class data sharing only archives classes loaded from JAR files, so
+ * the classes are first packed into {@code insects.jar} next to the archive; both are kept, and later runs
+ * can use them with {@code java -XX:SharedArchiveFile=<archive> -cp <dir>/insects.jar Main}.
+ * The archive only fits the JDK and the JAR it was made with.
+ * Compared variants: the former {@link Scanner} entry path, {@link FastStartup} without and with the archive,
+ * and the latter with only the C1 compiler.
+ * Usage: scripts/bench.sh StartupBenchmark [runs] [archive]; scripts/appcds.sh makes the archive for everyday
+ * runs.
+ */
+class StartupBenchmark {
+    private static final int DEFAULT_RUNS = 20;
+    private static final String DEFAULT_ARCHIVE = "insects.jsa";
+    private static final String JAR_NAME = "insects.jar";
+    private static final String SCANNER_ENTRY = "StartupBenchmark$ScannerEntry";
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RUNS;
+        Path archive = Paths.get(args.length > 1 ? args[1] : DEFAULT_ARCHIVE).toAbsolutePath();
+        Path directory = Files.createTempDirectory("insects-startup");
+        Files.writeString(directory.resolve("input.txt"),
+                new ScenarioGenerator(List.of("size=10-30", "insects=4-16", "food=10-50")).next(),
+                StandardCharsets.US_ASCII);
+
+        String jar = packClasses(archive.resolveSibling(JAR_NAME));
+        Files.deleteIfExists(archive);
+        run(directory, ShardCoordinator.javaCommand(jar, "-XX:ArchiveClassesAtExit=" + archive, "Main"));
+        String expected = Files.readString(directory.resolve("output.txt"), StandardCharsets.US_ASCII);
+        System.out.println("archive=" + archive + " bytes=" + Files.size(archive));
+
+        String useArchive = "-XX:SharedArchiveFile=" + archive;
+        String[] names = {"scanner", "fast", "fast+appcds", "fast+appcds+c1"};
+        List<List<String>> commands = List.of(
+                ShardCoordinator.javaCommand(jar, SCANNER_ENTRY),
+                ShardCoordinator.javaCommand(jar, "Main"),
+                ShardCoordinator.javaCommand(jar, useArchive, "Main"),
+                ShardCoordinator.javaCommand(jar, useArchive, "-XX:TieredStopAtLevel=1", "Main"));
+        long[][] nanos = new long[names.length][runs];
+        for (int r = 0; r < runs; r++) {
+            for (int v = 0; v < names.length; v++) {
+                nanos[v][r] = run(directory, commands.get(v));
+                String output = Files.readString(directory.resolve("output.txt"), StandardCharsets.US_ASCII);
+                if (!output.equals(expected)) {
+                    throw new IllegalStateException(names[v] + " wrote a different output");
+                }
+            }
+        }
+        for (int v = 0; v < names.length; v++) {
+            Arrays.sort(nanos[v]);
+            System.out.printf("%s: median=%.1fms min=%.1fms%n", names[v],
+                    nanos[v][runs / 2] / NANOS_PER_MILLI, nanos[v][0] / NANOS_PER_MILLI);
+        }
+    }
+    /**
+     * Copies the class files of the class path directories of this JVM, the program and the harnesses, into
+     * a JAR.
+     * @return the JAR, or the class path itself if it already is a single JAR
+     */
+    private static String packClasses(Path jar) throws IOException {
+        String classPath = System.getProperty("java.class.path");
+        String[] entries = classPath.split(File.pathSeparator);
+        if (entries.length == 1 && !Files.isDirectory(Paths.get(classPath))) {
+            return classPath;
+        }
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (String entry : entries) {
+                Path classes = Paths.get(entry);
+                List<Path> files;
+                try (Stream<Path> walk = Files.walk(classes)) {
+                    files = walk.filter(file -> file.toString().endsWith(".class")).sorted()
+                            .collect(Collectors.toList());
+                }
+                for (Path file : files) {
+                    out.putNextEntry(new JarEntry(classes.relativize(file).toString()
+                            .replace(File.separatorChar, '/')));
+                    Files.copy(file, out);
+                    out.closeEntry();
+                }
+            }
+        }
+        return jar.toString();
+    }
+    /**
+     * @return wall time from starting the process until it exited, in nanoseconds
+     */
+    private static long run(Path directory, List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        int exitCode = process.waitFor();
+        long elapsed = System.nanoTime() - start;
+        if (exitCode != 0) {
+            throw new IllegalStateException(String.join(" ", command) + " exited with " + exitCode);
+        }
+        return elapsed;
+    }
+    /**
+     * The one-shot entry path as it was before {@link FastStartup}, reading input.txt with {@link Scanner}.
+     */
+    static final class ScannerEntry {
+        private ScannerEntry() {
+        }
+
+        public static void main(String[] args) throws IOException {
+            String output;
+            try (Scanner sc = new Scanner(new File("input.txt"))) {
+                output = String.join(System.lineSeparator(), Scenario.read(sc).run()) + System.lineSeparator();
+            } catch (Exception e) {
+                output = e.getMessage() + System.lineSeparator();
+            }
+            Files.writeString(Paths.get("output.txt"), output);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+#!/bin/sh
+# Builds the program into a JAR together with an AppCDS archive of the classes a one-shot run loads.
+# Usage: scripts/appcds.sh
+# Writes build/appcds/insects.jar and build/appcds/insects.jsa; scripts/insects.sh runs the program with them.
+# The archive only fits the JAR and the JDK it was made with: run this again on the target machine, and after
+# changing Main.java or the JDK.
+set -e
+cd "$(dirname "$0")/.."
+out=$(pwd)/build/appcds
+rm -rf "$out"
+mkdir -p "$out/classes" "$out/training"
+javac -d "$out/classes" Main.java
+# class data sharing only archives classes loaded from JAR files
+jar cf "$out/insects.jar" -C "$out/classes" .
+java -cp "$out/insects.jar" Main --generate 1 "$out/training/input.txt" size=10-30 insects=4-16 food=10-50
+(cd "$out/training" && java -XX:ArchiveClassesAtExit="$out/insects.jsa" -cp "$out/insects.jar" Main)
+echo "Wrote $out/insects.jsa; run the program with scripts/insects.sh"
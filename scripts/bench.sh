@@ -0,0 +1,11 @@
+#!/bin/sh
+# Runs one of the measurement harnesses in bench/, compiled separately against Main.java.
+# Usage: scripts/bench.sh HarnessClass [arguments...]
+# e.g. scripts/bench.sh ConcurrentBoardBenchmark 1000 2000 100
+set -e
+cd "$(dirname "$0")/.."
+rm -rf build/main build/bench
+mkdir -p build/main build/bench
+javac -d build/main Main.java
+javac -cp build/main -d build/bench bench/*.java
+java -cp build/main:build/bench "$@"
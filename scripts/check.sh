@@ -0,0 +1,11 @@
+#!/bin/sh
+# Builds the program and runs the regression check in test/ against it: every engine and batch mode, and
+# one-shot runs of Main, compared with the original program. Exits with status 1 if anything differs.
+# Usage: scripts/check.sh [scenarios] [seed]
+set -e
+cd "$(dirname "$0")/.."
+rm -rf build/main build/test
+mkdir -p build/main build/test
+javac -d build/main Main.java
+javac -cp build/main -d build/test test/*.java
+java -cp build/main:build/test RegressionCheck "$@"
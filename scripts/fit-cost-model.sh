@@ -0,0 +1,21 @@
+#!/bin/sh
+# Refits the rows of EngineCostModel in Main.java on this machine.
+# Usage: scripts/fit-cost-model.sh [scenarios] [seed]
+# Generates a corpus of scenarios of sizes 4 to 1000, runs it with every engine forced in turn under
+# --shadow adaptive (one scenario at a time, so the logged run times are not shared with other threads),
+# and prints the fitted rows; paste them into EngineCostModel.
+set -e
+cd "$(dirname "$0")/.."
+scenarios=${1:-3000}
+seed=${2:-7}
+work=build/fit
+rm -rf build/main "$work"
+mkdir -p build/main "$work"
+javac -d build/main Main.java
+java -cp build/main Main --generate "$scenarios" "$work/corpus.txt" "seed=$seed" size=4-1000
+for engine in reference dense arena sparse kernel forkjoin; do
+    java -cp build/main -Dinsects.plan.force=$engine -Dinsects.plan.log="$work/$engine.log" \
+        Main --shadow adaptive "$work/corpus.txt" "$work/$engine.report"
+done
+java -cp build/main Main --fit-cost-model "$work/reference.log" "$work/dense.log" "$work/arena.log" \
+    "$work/sparse.log" "$work/kernel.log" "$work/forkjoin.log"
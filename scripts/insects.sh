@@ -0,0 +1,14 @@
+#!/bin/sh
+# Runs the program from the JAR and AppCDS archive built by scripts/appcds.sh, in the current directory:
+# without arguments as a one-shot run on input.txt, with arguments in one of the batch modes.
+# Usage: scripts/insects.sh [--mode arguments...]
+out=$(cd "$(dirname "$0")/.." && pwd)/build/appcds
+if [ ! -f "$out/insects.jsa" ]; then
+    echo "No archive in $out; run scripts/appcds.sh first" >&2
+    exit 1
+fi
+if [ $# -eq 0 ]; then
+    # a one-shot run is over before code compiled by C2 would pay off
+    exec java -XX:SharedArchiveFile="$out/insects.jsa" -XX:TieredStopAtLevel=1 -cp "$out/insects.jar" Main
+fi
+exec java -XX:SharedArchiveFile="$out/insects.jsa" -cp "$out/insects.jar" Main "$@"
@@ -0,0 +1,233 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Regression check of every engine and batch mode against the original program, {@link Scenario#read(Scanner)}
+ * followed by {@link Scenario#run()}:
+ * <ul>
+ *     <li>every engine, the fork-join one also with a low threshold on a pool of its own so that its parallel
+ *     path runs, must produce the reference lines for every valid generated scenario;</li>
+ *     <li>every batch mode must produce, for one concatenated input of generated scenarios, some of them
+ *     invalid, and of edge cases (byte order mark, non-ASCII and malformed numbers, truncated input), the
+ *     reference output of each scenario, or the error line the batch modes give where the original program
+ *     dies of a Scanner exception;</li>
+ *     <li>a few one-shot runs of {@code Main} in a new JVM must write the output.txt of the original program,
+ *     or none where it dies.</li>
+ * </ul>
+ * Usage: scripts/check.sh [scenarios] [seed]; prints every failure and exits with status 1 if there was one.
+ */
+class RegressionCheck {
+    private static final int DEFAULT_SCENARIOS = 300;
+    private static final long DEFAULT_SEED = 1L;
+    private static final String INVALID_RATE = "0.2";
+    private static final String MAX_GENERATED_SIZE = "300";
+    private static final int PARALLELISM = 2;
+    private static final int LOW_THRESHOLD = 4;
+    private static final int PIPELINE_WORKERS = 3;
+    private static final int SHARD_WORKERS = 2;
+    private static final int ONE_SHOT_RUNS = 4;
+    private static final String[] ENGINES = {"reference", "dense", "arena", "sparse", "adaptive", "kernel", "forkjoin"};
+    private static final String INVALID_FORMAT = new InvalidInputFormatException().getMessage();
+    private static final String VALID_BODY = "Red Ant 1 1\n5 2 2\n";
+    /**
+     * Scenarios with the output line every batch mode must give for them; the first one only works at the
+     * start of the input.
+     */
+    private static final String[][] EDGE_CASES = {
+            {"\uFEFF10\n1\n1\n" + VALID_BODY, INVALID_FORMAT},
+            {"10\n1\n1\nR\u00e9d Ant 1 1\n5 2 2\n", new InvalidInsectColorException().getMessage()},
+            {"10\n1\n1\nRed Ant 1 1\nabc 2 2\n", INVALID_FORMAT},
+            {"10\n1\n1\nRed Ant 1 1\n1,000 2 2\n", INVALID_FORMAT},
+            {"1x\n1\n1\n" + VALID_BODY, INVALID_FORMAT},
+            {"10\n1\n1\n" + VALID_BODY, "Red Ant South-East 5"},
+    };
+    /**
+     * Scenario cut short by the end of the input; it only works at the end.
+     */
+    private static final String[] TRUNCATED = {"10\n2\n1\nRed Ant 1 1\n", INVALID_FORMAT};
+
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int scenarios = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SCENARIOS;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+        ScenarioGenerator generator = new ScenarioGenerator(List.of("seed=" + seed,
+                "size=" + Scenario.MIN_SIZE + "-" + MAX_GENERATED_SIZE, "invalid=" + INVALID_RATE));
+        List<String> generated = new ArrayList<>();
+        for (int i = 0; i < scenarios; i++) {
+            generated.add(generator.next());
+        }
+        RegressionCheck check = new RegressionCheck();
+        check.checkEngines(generated);
+        check.checkBatchModes(generated);
+        check.checkOneShot(generated);
+        for (String failure : check.failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.out.println(check.failures.isEmpty() ? "ok" : check.failures.size() + " failures");
+        if (!check.failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private void checkEngines(List<String> generated) {
+        List<SimulationEngine> engines = new ArrayList<>();
+        for (String name : ENGINES) {
+            engines.add(SimulationEngine.named(name));
+        }
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        engines.add(new ForkJoinEngine(pool, LOW_THRESHOLD));
+        try {
+            for (int s = 0; s < generated.size(); s++) {
+                Scenario scenario;
+                try {
+                    scenario = Scenario.read(new Scanner(generated.get(s)));
+                } catch (Exception e) {
+                    continue;
+                }
+                List<String> expected = scenario.run();
+                for (int e = 0; e < engines.size(); e++) {
+                    List<String> actual = engines.get(e).run(scenario);
+                    if (!expected.equals(actual)) {
+                        failures.add("engine " + engines.get(e).getName() + (e < ENGINES.length ? "" : " (parallel)")
+                                + " scenario " + (s + 1) + ": expected " + expected + " but got " + actual);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void checkBatchModes(List<String> generated) throws IOException {
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (String[] edgeCase : EDGE_CASES) {
+            input.append(edgeCase[0]);
+            expected.append(edgeCase[1]).append(System.lineSeparator());
+        }
+        for (String scenario : generated) {
+            input.append(scenario);
+            expected.append(batchOutput(scenario));
+        }
+        input.append(TRUNCATED[0]);
+        expected.append(TRUNCATED[1]).append(System.lineSeparator());
+        byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+        String want = expected.toString();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ScenarioStream.run(new ByteArrayInputStream(bytes), out);
+        compare("--stream", want, out);
+        for (int workers : new int[] {1, PIPELINE_WORKERS}) {
+            out.reset();
+            new ScenarioPipeline(workers, ScenarioPipeline.DEFAULT_QUEUE_CAPACITY)
+                    .run(new ByteArrayInputStream(bytes), out);
+            compare("--pipeline " + workers, want, out);
+        }
+        out.reset();
+        new LaneScheduler(1, 1, LaneScheduler.DEFAULT_SMALL_JOB_MICROS).run(new ByteArrayInputStream(bytes), out);
+        compare("--schedule", want, out);
+        out.reset();
+        new ShardCoordinator(SHARD_WORKERS).run(new ByteArrayInputStream(bytes), out);
+        compare("--shard " + SHARD_WORKERS, want, out);
+        long mismatches = new ShadowRunner(new AdaptiveEngine())
+                .run(new ByteArrayInputStream(bytes), new PrintStream(OutputStream.nullOutputStream()));
+        if (mismatches != 0) {
+            failures.add("--shadow adaptive: " + mismatches + " mismatches");
+        }
+    }
+    /**
+     * Output of the original program for one scenario, where a Scanner exception stands for a malformed number.
+     */
+    private static String batchOutput(String scenario) {
+        StringBuilder output = new StringBuilder();
+        try {
+            for (String line : Scenario.read(new Scanner(scenario)).run()) {
+                output.append(line).append(System.lineSeparator());
+            }
+        } catch (Exception e) {
+            output.append(e.getMessage()).append(System.lineSeparator());
+        } catch (NoSuchElementException e) {
+            output.append(INVALID_FORMAT).append(System.lineSeparator());
+        }
+        return output.toString();
+    }
+
+    private void compare(String mode, String expected, ByteArrayOutputStream out) {
+        String[] want = expected.split(System.lineSeparator(), -1);
+        String[] got = out.toString(StandardCharsets.UTF_8).split(System.lineSeparator(), -1);
+        for (int line = 0; line < Math.max(want.length, got.length); line++) {
+            String wantLine = line < want.length ? want[line] : "<none>";
+            String gotLine = line < got.length ? got[line] : "<none>";
+            if (!wantLine.equals(gotLine)) {
+                failures.add(mode + " line " + (line + 1) + ": expected \"" + wantLine + "\" but got \"" + gotLine
+                        + "\"");
+                return;
+            }
+        }
+    }
+
+    private void checkOneShot(List<String> generated) throws IOException, InterruptedException {
+        List<String> inputs = new ArrayList<>(generated.subList(0, Math.min(ONE_SHOT_RUNS, generated.size())));
+        for (String[] edgeCase : EDGE_CASES) {
+            inputs.add(edgeCase[0]);
+        }
+        inputs.add(TRUNCATED[0]);
+        Path directory = Files.createTempDirectory("insects-regression");
+        Path input = directory.resolve("input.txt");
+        Path output = directory.resolve("output.txt");
+        // the runs start in another directory, so a relative class path would not find the classes
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(classPath.length() == 0 ? "" : File.pathSeparator)
+                    .append(Paths.get(entry).toAbsolutePath());
+        }
+        List<String> command = ShardCoordinator.javaCommand(classPath.toString(), "Main");
+        for (int i = 0; i < inputs.size(); i++) {
+            Files.write(input, inputs.get(i).getBytes(StandardCharsets.UTF_8));
+            String expected = oneShotOutput(input);
+            Files.deleteIfExists(output);
+            new ProcessBuilder(command).directory(directory.toFile())
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start().waitFor();
+            String actual = Files.exists(output) ? Files.readString(output, StandardCharsets.ISO_8859_1) : null;
+            if (!Objects.equals(expected, actual)) {
+                failures.add("one-shot input " + (i + 1) + ": expected " + expected + " but got " + actual);
+            }
+            Files.deleteIfExists(output);
+        }
+        Files.delete(input);
+        Files.delete(directory);
+    }
+    /**
+     * Contents of the output.txt the original program writes for an input.txt, or null if it dies first.
+     */
+    private static String oneShotOutput(Path input) throws IOException {
+        try (Scanner sc = new Scanner(input.toFile())) {
+            StringBuilder output = new StringBuilder();
+            for (String line : Scenario.read(sc).run()) {
+                output.append(line).append(System.lineSeparator());
+            }
+            return output.toString();
+        } catch (Exception e) {
+            return e.getMessage() + System.lineSeparator();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}